@@ -0,0 +1,75 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost to the calling thread of each kind of call on the client.
+ *
+ * <p>Run with {@code -prof gc} for the allocation rate per call, and with {@code -t}
+ * to vary the number of producer threads sharing the client.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientCallBenchmark {
+
+    private LoopbackUdpSink sink;
+    private NonBlockingStatsDClient client;
+    private long value;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        sink = new LoopbackUdpSink();
+        client = new NonBlockingStatsDClientBuilder()
+                .prefix("bench.prefix").hostname("127.0.0.1").port(sink.port())
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        client.stop();
+        sink.close();
+    }
+
+    @Benchmark
+    public void count() {
+        client.count("bench.count", 1L);
+    }
+
+    @Benchmark
+    public void recordGaugeValueLong() {
+        client.recordGaugeValue("bench.gauge", value++);
+    }
+
+    @Benchmark
+    public void recordGaugeValueDouble() {
+        client.recordGaugeValue("bench.gauge", 1234.5678d + value++);
+    }
+
+    @Benchmark
+    public void recordSetEvent() {
+        client.recordSetEvent("bench.set", "member-1234");
+    }
+
+    @Benchmark
+    public void recordExecutionTime() {
+        client.recordExecutionTime("bench.time", 123L);
+    }
+}
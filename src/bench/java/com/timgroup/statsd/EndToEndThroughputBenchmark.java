@@ -0,0 +1,83 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many messages per second get from the calling threads, through the
+ * sender, to a StatsD stand-in on the loopback interface.
+ *
+ * <p>The queue blocks when full, so the calling threads are held to the rate at which
+ * the sender can drain it. After each iteration, the rate at which the stand-in actually
+ * received messages and packets is printed, along with any messages the client dropped.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndThroughputBenchmark {
+
+    @Param({ "0", "1432", "8932" })
+    public int maxPacketSizeBytes;
+
+    private LoopbackUdpSink sink;
+    private NonBlockingStatsDClient client;
+    private long messagesAtStart;
+    private long packetsAtStart;
+    private long droppedAtStart;
+    private long nanosAtStart;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        sink = new LoopbackUdpSink();
+        client = new NonBlockingStatsDClientBuilder()
+                .prefix("bench.prefix").hostname("127.0.0.1").port(sink.port())
+                .maxPacketSizeBytes(maxPacketSizeBytes)
+                .overflowPolicy(QueueOverflowPolicy.BLOCK).maxBlockMillis(1000L)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        client.stop();
+        sink.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        messagesAtStart = sink.messages();
+        packetsAtStart = sink.packets();
+        droppedAtStart = client.getDroppedMessageCount();
+        nanosAtStart = System.nanoTime();
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportDelivery() {
+        final double seconds = (System.nanoTime() - nanosAtStart) / 1e9d;
+        final long messages = sink.messages() - messagesAtStart;
+        final long packets = sink.packets() - packetsAtStart;
+        final long dropped = client.getDroppedMessageCount() - droppedAtStart;
+        System.out.printf(" (delivered %.0f msgs/s in %.0f packets/s, dropped %d)",
+                          messages / seconds, packets / seconds, dropped);
+    }
+
+    @Benchmark
+    public void count() {
+        client.count("bench.count", 1L);
+    }
+}
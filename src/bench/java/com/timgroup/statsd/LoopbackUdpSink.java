@@ -0,0 +1,80 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A StatsD server stand-in for benchmarks, which receives datagrams on the loopback
+ * interface as fast as it can and counts what arrives.
+ */
+final class LoopbackUdpSink {
+
+    private final DatagramChannel channel;
+    private final Thread receiver;
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    LoopbackUdpSink() throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 8 * 1024 * 1024);
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        receiver = new Thread(new Runnable() {
+            @Override public void run() {
+                receive();
+            }
+        }, "LoopbackUdpSink");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    int port() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    long packets() {
+        return packets.get();
+    }
+
+    long messages() {
+        return messages.get();
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    void close() throws Exception {
+        channel.close();
+        receiver.join();
+    }
+
+    private void receive() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+        try {
+            while (true) {
+                buffer.clear();
+                channel.receive(buffer);
+                buffer.flip();
+                long lines = 1L;
+                for (int i = 0; i < buffer.limit(); i++) {
+                    if (buffer.get(i) == '\n') {
+                        lines++;
+                    }
+                }
+                packets.incrementAndGet();
+                messages.addAndGet(lines);
+                bytes.addAndGet(buffer.limit());
+            }
+        } catch (ClosedChannelException e) {
+            return;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.timgroup.statsd;
+
+/**
+ * Accumulates metrics on the client side, to be written out by the sender thread
+ * at the end of each aggregation interval instead of one message per call.
+ */
+interface Aggregator {
+
+    /**
+     * Writes a message for everything accumulated since the previous flush, and starts
+     * a new interval. Only ever called from the sender thread.
+     *
+     * @param encoder
+     *     an encoder for the aggregator to use, owned by the sender thread
+     * @param out
+     *     receives each encoded message
+     */
+    void flush(MessageEncoder encoder, MessageRingBuffer.Handler out);
+
+}
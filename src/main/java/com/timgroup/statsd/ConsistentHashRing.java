@@ -0,0 +1,124 @@
+package com.timgroup.statsd;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An immutable consistent-hash ring, which maps keys to named nodes such that adding or
+ * removing a node only moves the keys that it gains or loses.
+ *
+ * <p>Each node is placed at many pseudo-random points on the ring, and a key belongs to
+ * the node at the first point at or after the key's own hash, so keys spread evenly.</p>
+ */
+final class ConsistentHashRing<T> {
+
+    static final int POINTS_PER_NODE = 160;
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final Map<String, T> nodes;
+    private final long[] points;
+    private final Object[] owners;
+
+    ConsistentHashRing() {
+        this(Collections.<String, T>emptyMap());
+    }
+
+    private ConsistentHashRing(Map<String, T> nodes) {
+        this.nodes = nodes;
+        final Point[] sorted = new Point[nodes.size() * POINTS_PER_NODE];
+        int index = 0;
+        for (Map.Entry<String, T> node : nodes.entrySet()) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                sorted[index++] = new Point(hash(node.getKey() + "#" + i), node.getKey(), node.getValue());
+            }
+        }
+        Arrays.sort(sorted);
+        this.points = new long[sorted.length];
+        this.owners = new Object[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            points[i] = sorted[i].hash;
+            owners[i] = sorted[i].owner;
+        }
+    }
+
+    /**
+     * @return a ring with the given node added, or replaced if it is already present
+     */
+    ConsistentHashRing<T> with(String name, T node) {
+        final Map<String, T> updated = new LinkedHashMap<String, T>(nodes);
+        updated.put(name, node);
+        return new ConsistentHashRing<T>(updated);
+    }
+
+    /**
+     * @return a ring without the named node
+     */
+    ConsistentHashRing<T> without(String name) {
+        final Map<String, T> updated = new LinkedHashMap<String, T>(nodes);
+        updated.remove(name);
+        return new ConsistentHashRing<T>(updated);
+    }
+
+    Map<String, T> nodes() {
+        return Collections.unmodifiableMap(nodes);
+    }
+
+    /**
+     * @return the node that owns the given key, or null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    T nodeFor(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return (T) owners[(index == points.length) ? 0 : index];
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the characters of the key, with a final mix so that similar
+     * keys land far apart.
+     */
+    static long hash(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        final int length = (key == null) ? 0 : key.length();
+        for (int i = 0; i < length; i++) {
+            final char c = key.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Point implements Comparable<Point> {
+        final long hash;
+        final String name;
+        final Object owner;
+
+        Point(long hash, String name, Object owner) {
+            this.hash = hash;
+            this.name = name;
+            this.owner = owner;
+        }
+
+        @Override
+        public int compareTo(Point other) {
+            if (hash != other.hash) {
+                return (hash < other.hash) ? -1 : 1;
+            }
+            return name.compareTo(other.name);
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package com.timgroup.statsd;
 
+import java.util.concurrent.Callable;
+
 public abstract class ConvenienceMethodProvidingStatsDClient implements StatsDClient {
 
+    static final long NANOS_PER_MILLI = 1000000L;
+
     public ConvenienceMethodProvidingStatsDClient() {
         super();
     }
@@ -84,4 +88,81 @@ public abstract class ConvenienceMethodProvidingStatsDClient implements StatsDCl
     public void recordExecutionTimeToNow(String aspect, long systemTimeMillisAtStart) {
         time(aspect, Math.max(0, System.currentTimeMillis() - systemTimeMillisAtStart));
     }
+
+    /**
+     * Records an execution time in nanoseconds for the specified named operation, for times
+     * measured with {@link System#nanoTime()}.
+     *
+     * <p>This method is non-blocking and is guaranteed not to throw an exception.</p>
+     *
+     * @param aspect
+     *     the name of the timed operation
+     * @param timeInNanos
+     *     the time in nanoseconds
+     */
+    public final void recordExecutionTimeNanos(String aspect, long timeInNanos) {
+        recordExecutionTimeNanos(aspect, timeInNanos, 1.0);
+    }
+
+    /**
+     * Records an execution time in nanoseconds for the specified named operation, at the given
+     * sampling rate. Clients which cannot send fractions of a millisecond record the time
+     * rounded to the nearest millisecond, as this default does.
+     *
+     * @param aspect
+     *     the name of the timed operation
+     * @param timeInNanos
+     *     the time in nanoseconds
+     * @param sampleRate
+     *     the sampling rate being employed
+     */
+    public void recordExecutionTimeNanos(String aspect, long timeInNanos, double sampleRate) {
+        recordExecutionTime(aspect, roundedMillis(timeInNanos), sampleRate);
+    }
+
+    /**
+     * Runs the given operation, and records how long it took, as measured by
+     * {@link System#nanoTime()}, whether or not it completed normally.
+     *
+     * @param aspect
+     *     the name of the timed operation
+     * @param operation
+     *     the operation to run and time
+     */
+    public final void time(String aspect, Runnable operation) {
+        final long start = System.nanoTime();
+        try {
+            operation.run();
+        } finally {
+            recordExecutionTimeNanos(aspect, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Calls the given operation, and records how long it took, as measured by
+     * {@link System#nanoTime()}, whether or not it completed normally.
+     *
+     * @param aspect
+     *     the name of the timed operation
+     * @param operation
+     *     the operation to call and time
+     * @return the result of the operation
+     * @throws Exception
+     *     whatever the operation throws
+     */
+    public final <T> T time(String aspect, Callable<T> operation) throws Exception {
+        final long start = System.nanoTime();
+        try {
+            return operation.call();
+        } finally {
+            recordExecutionTimeNanos(aspect, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the given time in nanoseconds as whole milliseconds, rounded half up, and no less than zero
+     */
+    static long roundedMillis(long timeInNanos) {
+        return (Math.max(0L, timeInNanos) + NANOS_PER_MILLI / 2) / NANOS_PER_MILLI;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,64 @@
+package com.timgroup.statsd;
+
+/**
+ * Sums counter deltas per aspect, so that each aspect is sent as a single counter
+ * message per aggregation interval however often it is adjusted.
+ *
+ * <p>Deltas recorded with a sample rate are scaled up by that rate before being
+ * added, so the emitted total is the estimate StatsD itself would have made. Nothing
+ * is sent for an aspect in an interval in which it was not adjusted, and it is then
+ * forgotten until it is next used. Deltas given with different tags are summed
+ * apart.</p>
+ */
+final class CounterAggregator implements Aggregator, SeriesMap.Writer<StripedAccumulator> {
+
+    private static final byte[] COUNTER_TYPE = MessageEncoder.ascii("|c");
+
+    private final byte[] prefix;
+    private final byte[] constantTags;
+    private final SeriesMap<StripedAccumulator> counters = new SeriesMap<StripedAccumulator>() {
+        @Override StripedAccumulator create() {
+            return new StripedAccumulator();
+        }
+    };
+
+    /**
+     * @param constantTags
+     *     the suffix carrying the client's constant tags, for counters without tags of their own
+     */
+    CounterAggregator(byte[] prefix, byte[] constantTags) {
+        this.prefix = prefix;
+        this.constantTags = constantTags;
+    }
+
+    void add(String aspect, TagSet tags, long delta, double sampleRate) {
+        final StripedAccumulator counter = counters.get(aspect, tags);
+        if (sampleRate > 0.0d && sampleRate < 1.0d) {
+            counter.add(delta / sampleRate);
+        } else {
+            counter.add(delta);
+        }
+    }
+
+    @Override
+    public void flush(MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        counters.flush(constantTags, this, encoder, out);
+    }
+
+    @Override
+    public boolean write(String aspect, StripedAccumulator counter, byte[] tags, MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        final long wholeSum = counter.drainLong();
+        final double fractionalSum = counter.drainDouble();
+        if (wholeSum == 0L && fractionalSum == 0.0d) {
+            return false;
+        }
+        encoder.reset().put(prefix).putUtf8(aspect).put((byte) ':');
+        if (fractionalSum == 0.0d) {
+            encoder.putLong(wholeSum);
+        } else {
+            encoder.putDouble(wholeSum + fractionalSum);
+        }
+        encoder.put(COUNTER_TYPE).put(tags).writeTo(out);
+        return true;
+    }
+}
@@ -0,0 +1,291 @@
+package com.timgroup.statsd;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Writes doubles as ASCII decimal text in the form StatsD expects, without creating
+ * any objects.
+ *
+ * <p>The output matches that of a {@link java.text.NumberFormat} for {@link Locale#US}
+ * with grouping disabled and at most 19 fraction digits, which is how values were
+ * formatted before: plain notation, never an exponent, a '.' decimal point, fraction
+ * digits rounded half-even, and the NaN and infinity symbols of that locale. The digits
+ * are the shortest that uniquely identify the double, found with the Schubfach algorithm
+ * (Raffaello Giulietti, "The Schubfach way to render doubles", 2020). For a few values,
+ * mostly integers beyond 2<sup>53</sup>, the JDK emits a longer digit string; the text
+ * written here differs in those trailing digits but parses back to the same double.</p>
+ */
+final class DoubleFormatter {
+
+    private static final int MAX_FRACTION_DIGITS = 19;
+
+    private static final int P = 53;
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << (P - 1);
+    private static final long C_TINY = 3L;
+    private static final int BQ_MASK = (1 << 11) - 1;
+    private static final long T_MASK = (1L << (P - 1)) - 1;
+    private static final long MASK_63 = (1L << 63) - 1;
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+    private static final long[] G;
+    private static final byte[] NAN;
+    private static final byte[] INFINITY;
+
+    /** The longest text this formatter can write for any double. */
+    static final int MAX_LENGTH;
+
+    static {
+        POWERS_OF_TEN[0] = 1L;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10L;
+        }
+
+        // g(k) = floor(10^-k 2^-r) + 1, where r is chosen so that 2^125 <= 10^-k 2^-r < 2^126, split into two 63-bit halves
+        G = new long[2 * (K_MAX - K_MIN + 1)];
+        final BigInteger mask63 = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            final int r = flog2pow10(-k) - 125;
+            BigInteger numerator = (k <= 0) ? BigInteger.TEN.pow(-k) : BigInteger.ONE;
+            BigInteger denominator = (k > 0) ? BigInteger.TEN.pow(k) : BigInteger.ONE;
+            if (r <= 0) {
+                numerator = numerator.shiftLeft(-r);
+            } else {
+                denominator = denominator.shiftLeft(r);
+            }
+            final BigInteger g = numerator.divide(denominator).add(BigInteger.ONE);
+            G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+            G[2 * (k - K_MIN) + 1] = g.and(mask63).longValue();
+        }
+
+        final Charset utf8 = Charset.forName("UTF-8");
+        final DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.US);
+        NAN = symbols.getNaN().getBytes(utf8);
+        INFINITY = symbols.getInfinity().getBytes(utf8);
+        MAX_LENGTH = Math.max(1 + 309, 1 + Math.max(NAN.length, INFINITY.length));
+    }
+
+    private DoubleFormatter() { }
+
+    /**
+     * Writes the given value into the buffer, which must have at least {@link #MAX_LENGTH}
+     * bytes available from the offset.
+     *
+     * @return the offset just beyond the last byte written
+     */
+    static int format(double value, byte[] buffer, int offset) {
+        if (value != value) {
+            return put(NAN, buffer, offset);
+        }
+
+        final long bits = Double.doubleToRawLongBits(value);
+        if (bits < 0L) {
+            buffer[offset++] = '-';
+        }
+
+        final int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+        final long t = bits & T_MASK;
+        if (bq == BQ_MASK) {
+            return put(INFINITY, buffer, offset);
+        }
+        if (bq != 0) {
+            final int mq = -Q_MIN + 1 - bq;
+            final long c = C_MIN | t;
+            if (0 < mq && mq < P) {
+                final long f = c >> mq;
+                if (f << mq == c) {
+                    return putDecimal(value, f, 0, buffer, offset);
+                }
+            }
+            return toDecimal(value, -mq, c, 0, buffer, offset);
+        }
+        if (t != 0L) {
+            return (t < C_TINY)
+                    ? toDecimal(value, Q_MIN, 10L * t, -1, buffer, offset)
+                    : toDecimal(value, Q_MIN, t, 0, buffer, offset);
+        }
+        buffer[offset++] = '0';
+        return offset;
+    }
+
+    /**
+     * Finds the shortest decimal in the rounding interval of the double c 2^q, choosing the
+     * one closest to it when there are two, and writes it. Follows section 9 of the paper.
+     */
+    private static int toDecimal(double value, int q, long c, int dk, byte[] buffer, int offset) {
+        final int out = (int) c & 0x1;
+        final long cb = c << 2;
+        final long cbr = cb + 2;
+        final long cbl;
+        final int k;
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        final int h = q + flog2pow10(-k) + 2;
+
+        final long g1 = G[2 * (k - K_MIN)];
+        final long g0 = G[2 * (k - K_MIN) + 1];
+        final long vb = roundToOdd(g1, g0, cb << h);
+        final long vbl = roundToOdd(g1, g0, cbl << h);
+        final long vbr = roundToOdd(g1, g0, cbr << h);
+
+        final long s = vb >> 2;
+        if (s >= 100) {
+            final long sp10 = 10 * multiplyHigh(s, 115292150460684698L << 4);
+            final long tp10 = sp10 + 10;
+            final boolean upin = vbl + out <= sp10 << 2;
+            final boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                return putDecimal(value, upin ? sp10 : tp10, k + dk, buffer, offset);
+            }
+        }
+        final long t = s + 1;
+        final boolean uin = vbl + out <= s << 2;
+        final boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            return putDecimal(value, uin ? s : t, k + dk, buffer, offset);
+        }
+        final long cmp = vb - ((s + t) << 1);
+        return putDecimal(value, (cmp < 0 || (cmp == 0 && (s & 0x1) == 0)) ? s : t, k + dk, buffer, offset);
+    }
+
+    /**
+     * Writes f 10^e in plain notation, rounded half-even to at most 19 fraction digits.
+     */
+    private static int putDecimal(double value, long f, int e, byte[] buffer, int offset) {
+        while (f % 10 == 0 && f != 0) {
+            f /= 10;
+            e++;
+        }
+
+        if (-e > MAX_FRACTION_DIGITS) {
+            final int length = digitCount(f);
+            final int dropped = -e - MAX_FRACTION_DIGITS;
+            if (dropped > length) {
+                f = 0;
+            } else {
+                final long shortest = f;
+                final long divisor = POWERS_OF_TEN[dropped];
+                final long remainder = f % divisor;
+                final long half = divisor / 2;
+                f /= divisor;
+                if (remainder > half || (remainder == half && roundsHalfUp(value, shortest, e, f))) {
+                    f++;
+                }
+            }
+            e = -MAX_FRACTION_DIGITS;
+            if (f == 0) {
+                buffer[offset++] = '0';
+                return offset;
+            }
+            while (f % 10 == 0) {
+                f /= 10;
+                e++;
+            }
+        }
+
+        final int length = digitCount(f);
+        if (e >= 0) {
+            offset = putDigits(f, length, buffer, offset);
+            for (int i = 0; i < e; i++) {
+                buffer[offset++] = '0';
+            }
+            return offset;
+        }
+
+        final int integerDigits = length + e;
+        if (integerDigits > 0) {
+            final long divisor = POWERS_OF_TEN[-e];
+            offset = putDigits(f / divisor, integerDigits, buffer, offset);
+            buffer[offset++] = '.';
+            return putDigits(f % divisor, -e, buffer, offset);
+        }
+        buffer[offset++] = '0';
+        buffer[offset++] = '.';
+        for (int i = integerDigits; i < 0; i++) {
+            buffer[offset++] = '0';
+        }
+        return putDigits(f, length, buffer, offset);
+    }
+
+    /**
+     * Settles a tie between the shortest decimal and the two 19 digit candidates either side of it
+     * according to the exact binary value, which is never itself a tie. This is rare enough that
+     * the allocation involved does not matter.
+     */
+    private static boolean roundsHalfUp(double value, long shortest, int e, long roundedDown) {
+        final int comparison = new BigDecimal(Math.abs(value)).compareTo(new BigDecimal(BigInteger.valueOf(shortest), -e));
+        return comparison > 0 || (comparison == 0 && (roundedDown & 0x1) != 0);
+    }
+
+    private static int putDigits(long value, int length, byte[] buffer, int offset) {
+        int index = offset + length;
+        while (index > offset) {
+            final long quotient = value / 10;
+            buffer[--index] = (byte) ('0' + (value - quotient * 10));
+            value = quotient;
+        }
+        return offset + length;
+    }
+
+    private static int put(byte[] text, byte[] buffer, int offset) {
+        System.arraycopy(text, 0, buffer, offset, text.length);
+        return offset + text.length;
+    }
+
+    private static int digitCount(long value) {
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        return digits;
+    }
+
+    /** Computes floor(g cp / 2^127), with the least significant bit set if the result is inexact. */
+    private static long roundToOdd(long g1, long g0, long cp) {
+        final long x1 = multiplyHigh(g0, cp);
+        final long y0 = g1 * cp;
+        final long y1 = multiplyHigh(g1, cp);
+        final long z = (y0 >>> 1) + x1;
+        final long vbp = y1 + (z >>> 63);
+        return vbp | (((z & MASK_63) + MASK_63) >>> 63);
+    }
+
+    private static long multiplyHigh(long x, long y) {
+        final long x1 = x >> 32;
+        final long x2 = x & 0xFFFFFFFFL;
+        final long y1 = y >> 32;
+        final long y2 = y & 0xFFFFFFFFL;
+        final long z2 = x2 * y2;
+        final long t = x1 * y2 + (z2 >>> 32);
+        long z1 = t & 0xFFFFFFFFL;
+        final long z0 = t >> 32;
+        z1 += x2 * y1;
+        return x1 * y1 + z0 + (z1 >> 32);
+    }
+
+    /** floor(q log10(2)) */
+    private static int flog10pow2(int q) {
+        return (int) ((q * 661971961083L) >> 41);
+    }
+
+    /** floor(log10(3/4 2^q)) */
+    private static int flog10threeQuartersPow2(int q) {
+        return (int) ((q * 661971961083L - 274743187321L) >> 41);
+    }
+
+    /** floor(e log2(10)) */
+    private static int flog2pow10(int e) {
+        return (int) ((e * 913124641741L) >> 38);
+    }
+}
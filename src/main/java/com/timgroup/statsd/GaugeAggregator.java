@@ -0,0 +1,134 @@
+package com.timgroup.statsd;
+
+/**
+ * Coalesces gauge readings per aspect, so that only the latest value of each gauge
+ * is sent per aggregation interval however often it is recorded.
+ *
+ * <p>Deltas are summed into the pending value: onto the latest fixed value if one was
+ * recorded in the interval, or else into a single delta for the server to apply. Each
+ * aspect has a slot of its own, so recording different gauges never contends.
+ * A gauge not recorded for a whole interval is forgotten until it is next recorded.</p>
+ */
+final class GaugeAggregator implements Aggregator, SeriesMap.Writer<GaugeAggregator.Slot> {
+
+    private static final byte[] GAUGE_TYPE = MessageEncoder.ascii("|g");
+
+    private final byte[] prefix;
+    private final byte[] constantTags;
+    private final SeriesMap<Slot> gauges = new SeriesMap<Slot>() {
+        @Override Slot create() {
+            return new Slot();
+        }
+    };
+    private final Slot scratch = new Slot();
+
+    /**
+     * @param constantTags
+     *     the suffix carrying the client's constant tags, for gauges without tags of their own
+     */
+    GaugeAggregator(byte[] prefix, byte[] constantTags) {
+        this.prefix = prefix;
+        this.constantTags = constantTags;
+    }
+
+    void recordValue(String aspect, TagSet tags, long value) {
+        gauges.get(aspect, tags).setValue(value, 0.0d, false);
+    }
+
+    void recordValue(String aspect, TagSet tags, double value) {
+        gauges.get(aspect, tags).setValue(0L, value, true);
+    }
+
+    void recordDelta(String aspect, TagSet tags, long delta) {
+        gauges.get(aspect, tags).addDelta(delta, 0.0d, false);
+    }
+
+    void recordDelta(String aspect, TagSet tags, double delta) {
+        gauges.get(aspect, tags).addDelta(0L, delta, true);
+    }
+
+    @Override
+    public void flush(MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        gauges.flush(constantTags, this, encoder, out);
+    }
+
+    @Override
+    public boolean write(String aspect, Slot gauge, byte[] tags, MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        gauge.drainTo(scratch);
+        if (!scratch.pending) {
+            return false;
+        }
+        final boolean negative = scratch.isDouble ? scratch.doubleValue < 0 : scratch.longValue < 0L;
+        final boolean zero = scratch.isDouble ? scratch.doubleValue == 0.0d : scratch.longValue == 0L;
+        if (scratch.isDelta && zero) {
+            return true;
+        }
+        encoder.reset();
+        if (scratch.isDelta) {
+            encoder.put(prefix).putUtf8(aspect).put((byte) ':');
+            if (!negative) {
+                encoder.put((byte) '+');
+            }
+        } else {
+            if (negative) {
+                encoder.put(prefix).putUtf8(aspect).put((byte) ':').put((byte) '0').put(GAUGE_TYPE).put(tags).put((byte) '\n');
+            }
+            encoder.put(prefix).putUtf8(aspect).put((byte) ':');
+        }
+        if (scratch.isDouble) {
+            encoder.putDouble(scratch.doubleValue);
+        } else {
+            encoder.putLong(scratch.longValue);
+        }
+        encoder.put(GAUGE_TYPE).put(tags).writeTo(out);
+        return true;
+    }
+
+    /**
+     * The pending reading of one gauge: either a fixed value, with any later deltas already
+     * applied to it, or the sum of the deltas recorded since the last flush.
+     */
+    static final class Slot {
+        private boolean pending;
+        private boolean isDelta;
+        private boolean isDouble;
+        private long longValue;
+        private double doubleValue;
+
+        synchronized void setValue(long longValue, double doubleValue, boolean isDouble) {
+            this.pending = true;
+            this.isDelta = false;
+            this.isDouble = isDouble;
+            this.longValue = longValue;
+            this.doubleValue = doubleValue;
+        }
+
+        synchronized void addDelta(long longDelta, double doubleDelta, boolean deltaIsDouble) {
+            if (!pending) {
+                pending = true;
+                isDelta = true;
+                isDouble = false;
+                longValue = 0L;
+                doubleValue = 0.0d;
+            }
+            if (!isDouble && !deltaIsDouble) {
+                longValue += longDelta;
+                return;
+            }
+            if (!isDouble) {
+                isDouble = true;
+                doubleValue = longValue;
+            }
+            doubleValue += deltaIsDouble ? doubleDelta : longDelta;
+        }
+
+        synchronized void drainTo(Slot target) {
+            target.pending = pending;
+            target.isDelta = isDelta;
+            target.isDouble = isDouble;
+            target.longValue = longValue;
+            target.doubleValue = doubleValue;
+            pending = false;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.timgroup.statsd;
+
+/**
+ * Works out how much of its load a client should shed while its sender is falling behind:
+ * the factor by which the client lowers the sample rate of what it sends, checked a few times
+ * a second from the sender thread.
+ *
+ * <p>The sender is taken to be falling behind when its queue is more than half full, or when
+ * it has spent most of the time since the last check writing. The factor then drops by a
+ * fixed fraction at each check, down to the configured minimum, and climbs back gradually
+ * once the queue is nearly empty and the sender has time to spare, so that it changes
+ * smoothly rather than swinging between extremes.</p>
+ *
+ * <p>Being checked by the sender between writes, the factor is not updated during a write,
+ * however long it takes, but a long write counts towards the next check.</p>
+ */
+final class LoadShedder implements Aggregator {
+
+    /** How often the factor is checked. */
+    static final long UPDATE_INTERVAL_MILLIS = 100L;
+
+    private static final double HIGH_QUEUE_FILL = 0.5d;
+    private static final double LOW_QUEUE_FILL = 0.1d;
+    private static final double BUSY_WRITING = 0.8d;
+    private static final double IDLE_WRITING = 0.5d;
+    private static final double DECREASE = 0.7d;
+    private static final double INCREASE = 1.1d;
+
+    private final NonBlockingSender sender;
+    private final double minFactor;
+    private volatile double factor = 1.0d;
+    private long sendNanos;
+    private long checkedNanos = System.nanoTime();
+
+    /**
+     * @param minFactor
+     *     the lowest factor to shed down to, above zero and at most one
+     */
+    LoadShedder(NonBlockingSender sender, double minFactor) {
+        this.sender = sender;
+        this.minFactor = minFactor;
+        this.sendNanos = sender.getTelemetry().getTotalSendNanos();
+    }
+
+    /**
+     * @return the fraction of its sampled events the client currently sends, one when not shedding
+     */
+    double factor() {
+        return factor;
+    }
+
+    @Override
+    public void flush(MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        final long now = System.nanoTime();
+        final long sendNanosTotal = sender.getTelemetry().getTotalSendNanos();
+        final double writing = (double) (sendNanosTotal - sendNanos) / Math.max(1L, now - checkedNanos);
+        final double queueFill = (double) sender.getQueueSize() / sender.getQueueCapacity();
+        if (queueFill > HIGH_QUEUE_FILL || writing > BUSY_WRITING) {
+            factor = Math.max(minFactor, factor * DECREASE);
+        } else if (queueFill < LOW_QUEUE_FILL && writing < IDLE_WRITING && factor < 1.0d) {
+            factor = Math.min(1.0d, factor * INCREASE);
+        }
+        sendNanos = sendNanosTotal;
+        checkedNanos = now;
+    }
+}
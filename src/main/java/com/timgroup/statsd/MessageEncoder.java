@@ -0,0 +1,162 @@
+package com.timgroup.statsd;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes StatsD messages directly into a reusable byte array, so that recording
+ * a metric creates no intermediate Strings or byte arrays.
+ *
+ * <p>Each thread has its own encoder, obtained with {@link #forCurrentThread()} and
+ * reset at the start of every message. Text is written as UTF-8.</p>
+ */
+final class MessageEncoder {
+
+    private static final int INITIAL_CAPACITY_BYTES = 256;
+
+    private static final byte[] DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9' };
+    private static final byte[] NULL_TEXT = ascii("null");
+    private static final byte[] LONG_MIN_VALUE = ascii(Long.toString(Long.MIN_VALUE));
+
+    private static final ThreadLocal<MessageEncoder> ENCODERS = new ThreadLocal<MessageEncoder>() {
+        @Override protected MessageEncoder initialValue() {
+            return new MessageEncoder();
+        }
+    };
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY_BYTES];
+    private ByteBuffer view = ByteBuffer.wrap(bytes);
+    private int position;
+
+    static MessageEncoder forCurrentThread() {
+        return ENCODERS.get().reset();
+    }
+
+    MessageEncoder reset() {
+        position = 0;
+        return this;
+    }
+
+    int length() {
+        return position;
+    }
+
+    /**
+     * @return a buffer over the message encoded so far, valid until the encoder is next used
+     */
+    ByteBuffer buffer() {
+        view.limit(position).position(0);
+        return view;
+    }
+
+    /**
+     * Passes the message encoded so far to the given handler.
+     */
+    void writeTo(MessageRingBuffer.Handler out) {
+        out.handle(bytes, 0, position);
+    }
+
+    MessageEncoder put(byte b) {
+        ensureCapacity(1);
+        bytes[position++] = b;
+        return this;
+    }
+
+    MessageEncoder put(byte[] data) {
+        ensureCapacity(data.length);
+        System.arraycopy(data, 0, bytes, position, data.length);
+        position += data.length;
+        return this;
+    }
+
+    MessageEncoder putUtf8(CharSequence text) {
+        if (text == null) {
+            return put(NULL_TEXT);
+        }
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                ensureCapacity(1);
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                bytes[position++] = (byte) (0xC0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                ensureCapacity(4);
+                bytes[position++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                ensureCapacity(1);
+                bytes[position++] = '?';
+            } else {
+                ensureCapacity(3);
+                bytes[position++] = (byte) (0xE0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    MessageEncoder putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            return put(LONG_MIN_VALUE);
+        }
+        if (value < 0) {
+            put((byte) '-');
+            value = -value;
+        }
+        final int digits = digitCount(value);
+        ensureCapacity(digits);
+        int index = position + digits;
+        do {
+            final long quotient = value / 10;
+            bytes[--index] = DIGITS[(int) (value - quotient * 10)];
+            value = quotient;
+        } while (value != 0);
+        position += digits;
+        return this;
+    }
+
+    MessageEncoder putDouble(double value) {
+        ensureCapacity(DoubleFormatter.MAX_LENGTH);
+        position = DoubleFormatter.format(value, bytes, position);
+        return this;
+    }
+
+    static byte[] ascii(String text) {
+        final byte[] result = new byte[text.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) text.charAt(i);
+        }
+        return result;
+    }
+
+    static byte[] utf8(CharSequence text) {
+        final MessageEncoder encoder = new MessageEncoder().putUtf8(text);
+        return Arrays.copyOf(encoder.bytes, encoder.position);
+    }
+
+    private static int digitCount(long value) {
+        long bound = 10L;
+        for (int digits = 1; digits < 19; digits++) {
+            if (value < bound) {
+                return digits;
+            }
+            bound *= 10L;
+        }
+        return 19;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (position + additional > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + additional));
+            view = ByteBuffer.wrap(bytes);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.timgroup.statsd;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue of encoded messages awaiting the sender thread.
+ *
+ * <p>Each slot carries a sequence number which tells producers and consumers
+ * whether it is free to be written or ready to be read, so that neither side
+ * takes a lock. Producers claim slots with a single compare-and-set on the tail
+ * and copy their message into the byte array owned by the slot; the sender thread
+ * (and any producer discarding the oldest message to make room) claims them with
+ * a compare-and-set on the head. Slot arrays are allocated on first use and grown
+ * when a longer message arrives, so once warmed up the queue allocates nothing.</p>
+ */
+final class MessageRingBuffer {
+
+    /**
+     * Receives messages taken from the queue. The bytes are only valid for the duration of the call.
+     */
+    interface Handler {
+        void handle(byte[] data, int offset, int length);
+    }
+
+    private static final int MIN_SLOT_SIZE_BYTES = 128;
+    private static final int MAX_RETAINED_SLOT_SIZE_BYTES = 16384;
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    MessageRingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        final int size = roundUpToPowerOfTwo(capacity);
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.slots = new byte[size][];
+        this.lengths = new int[size];
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Queues the remaining bytes of the given buffer, consuming them if successful.
+     *
+     * @return true if the message was queued, false if the queue is full
+     */
+    boolean offer(ByteBuffer message) {
+        long position = tail.get();
+        while (true) {
+            final int index = (int) (position & mask);
+            final long difference = sequences.get(index) - position;
+            if (difference == 0L) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    final int length = message.remaining();
+                    byte[] slot = slots[index];
+                    if (slot == null || slot.length < length) {
+                        slot = new byte[Math.max(length, MIN_SLOT_SIZE_BYTES)];
+                        slots[index] = slot;
+                    }
+                    message.get(slot, 0, length);
+                    lengths[index] = length;
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0L) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Passes the oldest queued message to the given handler, and removes it from the queue.
+     * The slot is only freed once the handler returns, so the handler should not block.
+     *
+     * @return false if no message was ready to be read
+     */
+    boolean poll(Handler handler) {
+        long position = head.get();
+        while (true) {
+            final int index = (int) (position & mask);
+            final long difference = sequences.get(index) - (position + 1);
+            if (difference == 0L) {
+                if (head.compareAndSet(position, position + 1)) {
+                    final byte[] slot = slots[index];
+                    if (handler != null) {
+                        handler.handle(slot, 0, lengths[index]);
+                    }
+                    if (slot.length > MAX_RETAINED_SLOT_SIZE_BYTES) {
+                        slots[index] = null;
+                    }
+                    sequences.lazySet(index, position + mask + 1);
+                    return true;
+                }
+                position = head.get();
+            } else if (difference < 0L) {
+                return false;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest queued message without reading it.
+     *
+     * @return false if no message was ready to be removed
+     */
+    boolean discardOldest() {
+        return poll(null);
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    int size() {
+        final long size = tail.get() - head.get();
+        return (int) Math.max(0L, Math.min(size, capacity()));
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        if (value > (1 << 30)) {
+            throw new IllegalArgumentException("capacity is too large: " + value);
+        }
+        final int highestOneBit = Integer.highestOneBit(value);
+        return (highestOneBit == value) ? value : highestOneBit << 1;
+    }
+}
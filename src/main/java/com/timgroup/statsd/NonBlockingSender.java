@@ -0,0 +1,1007 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends StatsD messages through a {@link StatsDTransport} from a dedicated background thread,
+ * or as the {@link SenderExecution} given to it directs.
+ *
+ * <p>When batching is enabled (a positive maximum packet size), the sender thread
+ * joins queued messages with newlines into a single batch until either the
+ * batch is full or the oldest message in it has waited for the maximum linger
+ * time. With a linger time of zero, a packet is sent as soon as the queue has been
+ * drained, so batching only occurs when messages are arriving faster than they can
+ * be written.</p>
+ *
+ * <p>Messages wait for the sender thread in a bounded, preallocated queue. When it
+ * is full, new messages are handled according to the {@link QueueOverflowPolicy},
+ * and every discarded message is counted.</p>
+ *
+ * <p>With producer buffers, each thread sending messages joins them into a chunk of its
+ * own, which is queued in one go once it is full or once it has lingered, so that threads
+ * contend for the queue once per chunk rather than once per message. Queue capacity is
+ * then counted in chunks.</p>
+ *
+ * <p>With a {@link SpillJournal}, batches which the transport rejects are kept in the journal
+ * instead of being lost, and every batch after them joins them there until they have been
+ * written, in order, once the transport accepts writes again.</p>
+ *
+ * <p>What the sender has done, such as the messages it has discarded and the time it has
+ * spent writing, is counted in its {@link SenderTelemetry}.</p>
+ *
+ * <p>Client-side aggregators registered with the sender are flushed by the sender
+ * thread at the end of each of their intervals, and once more when it stops or when
+ * they are removed.</p>
+ *
+ * <p>{@link #flush()} sends everything queued and aggregated so far without waiting for
+ * batches to fill or intervals to end, and {@link #stop(long, TimeUnit)} gives up on what
+ * is left unsent after a deadline.</p>
+ *
+ * <p>A sender may be shared by several clients, each with a prefix of its own, so that
+ * their messages are batched together over a single thread and transport; see
+ * {@link NonBlockingStatsDClientBuilder#buildSender()} and
+ * {@link NonBlockingStatsDClientBuilder#sender(NonBlockingSender)}.</p>
+ */
+public class NonBlockingSender {
+
+    /** Largest payload that fits a standard 1500 byte Ethernet MTU after IP and UDP headers, with headroom for tunnelling. */
+    public static final int ETHERNET_MAX_PACKET_SIZE_BYTES = 1432;
+
+    /** Largest payload that fits a 9000 byte jumbo frame after IP and UDP headers, with headroom for tunnelling. */
+    public static final int JUMBO_FRAME_MAX_PACKET_SIZE_BYTES = 8932;
+
+    /** The number of messages that may wait for the sender thread unless otherwise configured. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    /** How long {@link #stop()} waits for queued messages to be sent. */
+    public static final long DEFAULT_STOP_TIMEOUT_MILLIS = 30000L;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte MESSAGE_SEPARATOR = '\n';
+    private static final int UNBATCHED_BUFFER_SIZE_BYTES = 1024;
+    private static final long BLOCKED_PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50L);
+    private static final long BUSY_PRODUCER_BUFFER_RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(100L);
+    private static final long SPILL_REPLAY_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1L);
+    private static final long ABANDONED_WRITE_GRACE_MILLIS = 1000L;
+    private static final long STOPPED = -1L;
+    private static final int IDLE = 0;
+    private static final int DRAINING = 1;
+    private static final int TERMINATED = 2;
+    private static final Runnable NOTHING = new Runnable() {
+        @Override public void run() { }
+    };
+
+    private final Charset encoding;
+    private final StatsDTransport transport;
+    private final Executor passRunner;
+    private final ScheduledExecutorService timer;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private final AtomicInteger passState = new AtomicInteger(IDLE);
+    private final AtomicBoolean transportClosed = new AtomicBoolean();
+    private final ConcurrentLinkedQueue<FutureTask<Void>> flushRequests = new ConcurrentLinkedQueue<FutureTask<Void>>();
+    private final Runnable drainPasses = new Runnable() {
+        @Override public void run() {
+            drainPasses();
+        }
+    };
+    private final Runnable timedWakeUp = new Runnable() {
+        @Override public void run() {
+            if (passState.compareAndSet(IDLE, DRAINING)) {
+                drainPasses();
+            }
+        }
+    };
+    private final MessageRingBuffer queue;
+    private final QueueOverflowPolicy overflowPolicy;
+    private final long maxBlockNanos;
+    private final SenderTelemetry telemetry;
+    private final MessageRingBuffer.Handler appender = new MessageRingBuffer.Handler() {
+        @Override public void handle(byte[] data, int offset, int length) {
+            append(data, offset, length);
+        }
+    };
+    private final MessageRingBuffer.Handler queuedAppender = new MessageRingBuffer.Handler() {
+        @Override public void handle(byte[] data, int offset, int length) {
+            appendQueued(data, offset, length);
+        }
+    };
+    private final MessageRingBuffer.Handler droppedChunkCounter = new MessageRingBuffer.Handler() {
+        @Override public void handle(byte[] data, int offset, int length) {
+            final int messages = countMessages(data, offset, length);
+            telemetry.messagesDropped(messages);
+            unsentMessages.add(-messages);
+        }
+    };
+    /** Messages accepted and not yet handed to the transport or discarded, wherever they are waiting. */
+    private final StripedAccumulator unsentMessages = new StripedAccumulator();
+    private final ConcurrentLinkedQueue<ProducerBuffer> producerBuffers;
+    private final ThreadLocal<ProducerBuffer> producerBuffer;
+    private final SpillJournal journal;
+    private final int maxPacketSizeBytes;
+    private final long maxLingerNanos;
+    private final ByteBuffer packet;
+    private ByteBuffer heldOver;
+    private final MessageEncoder aggregationEncoder = new MessageEncoder();
+    private final Object aggregatorsLock = new Object();
+    private StatsDClientErrorHandler handler;
+
+    private volatile ScheduledAggregator[] aggregators = new ScheduledAggregator[0];
+
+    private volatile boolean running = true;
+    private volatile boolean discardWhenStopped = false;
+    private volatile boolean abandoned = false;
+    private volatile boolean sleeping = false;
+    private volatile boolean buffersPending = false;
+    private volatile Thread senderThread;
+
+    private long packetStartNanos;
+    private int packetMessages;
+    private int incomingMessages;
+    private long nextReplayNanos;
+    private ScheduledFuture<?> pendingWakeUp;
+    private long pendingWakeUpNanos;
+
+    NonBlockingSender(StatsDTransport transport, Charset encoding, StatsDClientErrorHandler handler) throws IOException {
+        this(transport, encoding, handler, 0, 0L, DEFAULT_QUEUE_CAPACITY, QueueOverflowPolicy.DROP_NEWEST, 0L,
+             SenderExecution.platformThread(), false, null);
+    }
+
+    /**
+     * Senders are built with {@link NonBlockingStatsDClientBuilder#buildSender()}, or by the
+     * clients which own them.
+     *
+     * @param transport
+     *     carries each batch to the StatsD server; opened now, and closed when the sender stops
+     * @param maxPacketSizeBytes
+     *     the largest batch to write at once, or zero to write every message on its own
+     * @param maxLingerMillis
+     *     the longest time a message may wait for further messages to share its batch
+     * @param queueCapacity
+     *     the number of messages that may wait for the sender thread (rounded up to a power of two)
+     * @param overflowPolicy
+     *     what to do with a new message when the queue is full
+     * @param maxBlockMillis
+     *     the longest time to wait for room in the queue under {@link QueueOverflowPolicy#BLOCK}
+     * @param execution
+     *     where to drain the queue and write batches
+     * @param useProducerBuffers
+     *     whether each thread joins its messages into chunks of its own before queueing them;
+     *     needs batching, as each chunk is sent whole
+     * @param journal
+     *     where to keep batches the transport rejects until they can be written, or null to
+     *     discard them; closed when the sender stops
+     */
+    NonBlockingSender(StatsDTransport transport, Charset encoding, StatsDClientErrorHandler handler,
+                             int maxPacketSizeBytes, long maxLingerMillis,
+                             int queueCapacity, QueueOverflowPolicy overflowPolicy, long maxBlockMillis,
+                             SenderExecution execution, boolean useProducerBuffers, SpillJournal journal) throws IOException {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport must be specified");
+        }
+        if (maxPacketSizeBytes < 0) {
+            throw new IllegalArgumentException("maxPacketSizeBytes must not be negative: " + maxPacketSizeBytes);
+        }
+        if (maxLingerMillis < 0) {
+            throw new IllegalArgumentException("maxLingerMillis must not be negative: " + maxLingerMillis);
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy must be specified");
+        }
+        if (maxBlockMillis < 0) {
+            throw new IllegalArgumentException("maxBlockMillis must not be negative: " + maxBlockMillis);
+        }
+        if (execution == null) {
+            throw new IllegalArgumentException("execution must be specified");
+        }
+        if (useProducerBuffers && maxPacketSizeBytes == 0) {
+            throw new IllegalArgumentException("producer buffers need batching: maxPacketSizeBytes must be positive");
+        }
+        this.encoding = encoding;
+        this.handler = handler;
+        this.queue = new MessageRingBuffer(queueCapacity);
+        this.telemetry = new SenderTelemetry(queue);
+        this.overflowPolicy = overflowPolicy;
+        this.maxBlockNanos = TimeUnit.MILLISECONDS.toNanos(maxBlockMillis);
+        this.maxPacketSizeBytes = maxPacketSizeBytes;
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+        this.packet = ByteBuffer.allocateDirect(maxPacketSizeBytes > 0 ? maxPacketSizeBytes : UNBATCHED_BUFFER_SIZE_BYTES);
+        this.heldOver = ByteBuffer.allocate(packet.capacity());
+        if (useProducerBuffers) {
+            final int chunkSizeBytes = maxPacketSizeBytes;
+            this.producerBuffers = new ConcurrentLinkedQueue<ProducerBuffer>();
+            this.producerBuffer = new ThreadLocal<ProducerBuffer>() {
+                @Override protected ProducerBuffer initialValue() {
+                    final ProducerBuffer buffer = new ProducerBuffer(Thread.currentThread(), chunkSizeBytes);
+                    producerBuffers.add(buffer);
+                    return buffer;
+                }
+            };
+        } else {
+            this.producerBuffers = null;
+            this.producerBuffer = null;
+        }
+        this.passRunner = execution.passRunner;
+        this.timer = execution.timer;
+        this.journal = journal;
+        this.transport = transport;
+        this.transport.open();
+
+        if (execution.loopRunner != null) {
+            try {
+                execution.loopRunner.execute(new Runnable() {
+                    @Override public void run() {
+                        senderThread = Thread.currentThread();
+                        drainLoop();
+                    }
+                });
+            } catch (RuntimeException e) {
+                transport.close();
+                throw e;
+            }
+        }
+    }
+
+    public void stop() {
+        stop(DEFAULT_STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Counts messages sent once the sender has stopped as dropped, rather than reporting them as
+     * errors, for a sender which threads may still be racing to send to as it stops.
+     */
+    void discardWhenStopped() {
+        discardWhenStopped = true;
+    }
+
+    /**
+     * Stops accepting messages, sends those already queued and every aggregate, and closes
+     * the transport, giving up on whatever has not been sent by the deadline.
+     *
+     * <p>The sender closes the transport and the journal itself, once it has finished with
+     * them. If it is still stuck in a write a second after the deadline, the transport is
+     * closed from the calling thread instead, as the only way left to release the write.</p>
+     *
+     * @return the number of messages abandoned at the deadline, whether queued, waiting in a
+     *     producer's chunk, or in the batch being put together
+     */
+    public long stop(long timeout, TimeUnit unit) {
+        long abandonedMessages = 0L;
+        try {
+            running = false;
+            wakeUp();
+            if (!terminated.await(timeout, unit)) {
+                abandonedMessages = unsentMessageCount();
+                abandoned = true;
+                wakeUp();
+                if (!terminated.await(ABANDONED_WRITE_GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+                    closeTransport();
+                }
+            }
+        }
+        catch (Exception e) {
+            reportError(e);
+        }
+        return abandonedMessages;
+    }
+
+    /**
+     * Sends every message queued so far, and the aggregates of every aggregator, without
+     * waiting for batches to fill or aggregation intervals to end.
+     *
+     * @return a future which completes once all of it has been written to the transport, or
+     *     which is cancelled if the sender stops at its deadline first
+     */
+    public Future<Void> flush() {
+        final FutureTask<Void> request = new FutureTask<Void>(NOTHING, null);
+        flushRequests.add(request);
+        if (terminated.getCount() == 0L) { // the sender stopped before it could see the request
+            if (abandoned) {
+                cancelFlushRequests();
+            } else {
+                completeFlushRequests();
+            }
+        } else {
+            try {
+                wakeUp();
+            } catch (Exception e) {
+                reportError(e);
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Sends everything queued so far as {@link #flush()} does, waiting at most the given time.
+     *
+     * @return whether everything was written within the time
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        try {
+            flush().get(timeout, unit);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            return false; // timed out, or cancelled by the sender stopping at its deadline
+        }
+    }
+
+    public void send(final String message) {
+        if (UTF_8.equals(encoding)) {
+            send(MessageEncoder.forCurrentThread().putUtf8(message).buffer());
+        } else {
+            send(ByteBuffer.wrap(message.getBytes(encoding)));
+        }
+    }
+
+    /**
+     * Queues the remaining bytes of the given buffer as a single message, which
+     * must already be encoded. The bytes are copied, so the buffer may be reused
+     * as soon as this method returns.
+     */
+    public void send(final ByteBuffer message) {
+        try {
+            if (!running) {
+                if (discardWhenStopped) {
+                    telemetry.messageDropped();
+                    return;
+                }
+                throw new IllegalStateException("StatsD sender has been stopped");
+            }
+            if (producerBuffer != null) {
+                sendBuffered(message);
+                return;
+            }
+            if (enqueue(message)) {
+                telemetry.messageQueued();
+                unsentMessages.add(1L);
+            } else {
+                telemetry.messageDropped();
+            }
+            if (sleeping || passRunner != null) {
+                wakeUp();
+            }
+        }
+        catch (Exception e) {
+            reportError(e);
+        }
+    }
+
+    /**
+     * Appends the message to the calling thread's chunk, queueing the chunk first if the message
+     * does not fit, and waking the sender to keep an eye on the chunk if it was empty. A message
+     * larger than a chunk is queued on its own, waking the sender to send it.
+     *
+     * <p>A full chunk is taken out of the buffer under its lock, but queued after unlocking, so
+     * that a producer blocked on a full queue does not keep the sender from sweeping.</p>
+     */
+    private void sendBuffered(ByteBuffer message) {
+        final ProducerBuffer buffer = producerBuffer.get();
+        ByteBuffer full = null;
+        int fullMessages = 0;
+        boolean wasEmpty = false;
+        boolean queuedAlone = false;
+        buffer.lock.lock();
+        try {
+            if (buffer.append(message)) {
+                wasEmpty = (buffer.messages() == 1);
+                unsentMessages.add(1L);
+            } else if (!buffer.isEmpty()) {
+                fullMessages = buffer.messages();
+                full = buffer.take();
+            }
+        } finally {
+            buffer.lock.unlock();
+        }
+        if (full != null) {
+            if (enqueue(full)) {
+                telemetry.messagesQueued(fullMessages);
+            } else {
+                telemetry.messagesDropped(fullMessages);
+                unsentMessages.add(-fullMessages);
+            }
+            buffer.lock.lock();
+            try {
+                if (buffer.append(message)) {
+                    wasEmpty = (buffer.messages() == 1);
+                    unsentMessages.add(1L);
+                }
+            } finally {
+                buffer.lock.unlock();
+            }
+        }
+        if (message.hasRemaining()) { // larger than a chunk, so queued on its own
+            queuedAlone = enqueue(message);
+            if (queuedAlone) {
+                telemetry.messageQueued();
+                unsentMessages.add(1L);
+            } else {
+                telemetry.messageDropped();
+            }
+        }
+        if (wasEmpty) {
+            buffersPending = true;
+        }
+        if ((wasEmpty || full != null || queuedAlone) && (sleeping || passRunner != null)) {
+            wakeUp();
+        }
+    }
+
+    /**
+     * Queues the chunks of producers which have lingered for long enough, or all of them, along
+     * with any left behind by threads which have died, which are then forgotten. Chunks which do
+     * not fit the queue are left to be queued once it has been drained, and none are discarded.
+     *
+     * @return how long until a chunk is next due ({@link Long#MAX_VALUE} if none is), or zero if
+     *     there is more to queue as soon as possible
+     */
+    private long sweepProducerBuffers(long now, boolean all) {
+        buffersPending = false;
+        long remainingNanos = Long.MAX_VALUE;
+        for (ProducerBuffer buffer : producerBuffers) {
+            if (!all && !buffer.lock.tryLock()) {
+                remainingNanos = Math.min(remainingNanos, BUSY_PRODUCER_BUFFER_RETRY_NANOS);
+                continue;
+            }
+            if (all) {
+                buffer.lock.lock();
+            }
+            try {
+                final boolean ownerAlive = buffer.isOwnerAlive();
+                if (!buffer.isEmpty()) {
+                    final long lingerRemainingNanos = maxLingerNanos - (now - buffer.firstMessageNanos());
+                    if (!all && ownerAlive && lingerRemainingNanos > 0L) {
+                        remainingNanos = Math.min(remainingNanos, lingerRemainingNanos);
+                        continue;
+                    }
+                    final int messages = buffer.messages();
+                    if (!queue.offer(buffer.contents())) {
+                        return 0L;
+                    }
+                    telemetry.messagesQueued(messages);
+                    buffer.clear();
+                    remainingNanos = 0L;
+                }
+                if (!ownerAlive) {
+                    producerBuffers.remove(buffer);
+                }
+            } finally {
+                buffer.lock.unlock();
+            }
+        }
+        return remainingNanos;
+    }
+
+    /**
+     * @return the number of messages discarded because the queue was full
+     */
+    public long getDroppedMessageCount() {
+        return telemetry.getDroppedMessageCount();
+    }
+
+    /**
+     * @return the number of messages currently waiting for the sender thread
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of messages accepted which have not yet been handed to the transport,
+     *     whether they wait in the queue, in a producer's chunk, or in the batch being put together
+     */
+    long unsentMessageCount() {
+        return Math.max(0L, unsentMessages.sumLong());
+    }
+
+    /**
+     * @return the number of messages that may wait for the sender thread
+     */
+    public int getQueueCapacity() {
+        return queue.capacity();
+    }
+
+    /**
+     * @return the counts of what this sender has done since it started
+     */
+    public SenderTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    private boolean enqueue(ByteBuffer message) {
+        if (queue.offer(message)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!queue.offer(message)) {
+                    if (producerBuffers != null) {
+                        queue.poll(droppedChunkCounter);
+                    } else if (queue.discardOldest()) {
+                        telemetry.messageDropped();
+                        unsentMessages.add(-1L);
+                    }
+                }
+                return true;
+            case BLOCK:
+                final long deadline = System.nanoTime() + maxBlockNanos;
+                do {
+                    wakeUp();
+                    LockSupport.parkNanos(this, BLOCKED_PRODUCER_PARK_NANOS);
+                    if (queue.offer(message)) {
+                        return true;
+                    }
+                } while (running && System.nanoTime() - deadline < 0L);
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Arranges for the given aggregator to be flushed by the sender thread every interval.
+     */
+    void addAggregator(Aggregator aggregator, long intervalMillis) {
+        if (intervalMillis <= 0L) {
+            throw new IllegalArgumentException("aggregation interval must be positive: " + intervalMillis);
+        }
+        synchronized (aggregatorsLock) {
+            final ScheduledAggregator[] updated = Arrays.copyOf(aggregators, aggregators.length + 1);
+            updated[aggregators.length] = new ScheduledAggregator(aggregator, TimeUnit.MILLISECONDS.toNanos(intervalMillis));
+            aggregators = updated;
+        }
+        wakeUp();
+    }
+
+    /**
+     * Arranges for the given aggregator to be flushed one last time by the sender thread,
+     * and then forgotten.
+     */
+    void removeAggregator(Aggregator aggregator) {
+        synchronized (aggregatorsLock) {
+            for (ScheduledAggregator scheduled : aggregators) {
+                if (scheduled.aggregator == aggregator) {
+                    scheduled.removed = true;
+                }
+            }
+        }
+        wakeUp();
+    }
+
+    /**
+     * Gets the sender to look at its queue and aggregators: unparks the sender thread, or
+     * starts a drain pass unless one is already under way.
+     */
+    private void wakeUp() {
+        if (passRunner == null) {
+            LockSupport.unpark(senderThread);
+        } else if (passState.get() == IDLE && passState.compareAndSet(IDLE, DRAINING)) {
+            try {
+                passRunner.execute(drainPasses);
+            } catch (RuntimeException e) {
+                passState.compareAndSet(DRAINING, IDLE);
+                throw e;
+            }
+        }
+    }
+
+    private void drainLoop() {
+        long waitNanos;
+        while ((waitNanos = drain()) != STOPPED) {
+            park(waitNanos);
+        }
+        terminate();
+    }
+
+    /**
+     * Drains the queue for as long as there is work to do, while this thread alone holds the
+     * {@link #DRAINING} state, and then arranges to be woken when the next batch or aggregate
+     * is due.
+     */
+    private void drainPasses() {
+        do {
+            long waitNanos;
+            while ((waitNanos = drain()) == 0L) {
+                Thread.yield(); // a producer has claimed a slot but not yet filled it
+            }
+            if (waitNanos == STOPPED) {
+                cancelWakeUp();
+                passState.set(TERMINATED);
+                terminate();
+                return;
+            }
+            scheduleWakeUp(waitNanos);
+            passState.set(IDLE);
+        } while ((!queue.isEmpty() || buffersPending || !flushRequests.isEmpty() || !running)
+                 && passState.compareAndSet(IDLE, DRAINING));
+    }
+
+    private void terminate() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (Exception e) {
+                reportError(e);
+            }
+        }
+        closeTransport();
+        terminated.countDown();
+    }
+
+    private void closeTransport() {
+        if (!transportClosed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            transport.close();
+        } catch (Exception e) {
+            reportError(e);
+        }
+    }
+
+    private void scheduleWakeUp(long waitNanos) {
+        if (timer == null || waitNanos == Long.MAX_VALUE) {
+            return;
+        }
+        final long wakeUpNanos = System.nanoTime() + waitNanos;
+        if (pendingWakeUp != null && !pendingWakeUp.isDone() && pendingWakeUpNanos - wakeUpNanos <= 0L) {
+            return; // an earlier wake-up will find out what is due then
+        }
+        cancelWakeUp();
+        pendingWakeUp = timer.schedule(timedWakeUp, waitNanos, TimeUnit.NANOSECONDS);
+        pendingWakeUpNanos = wakeUpNanos;
+    }
+
+    private void cancelWakeUp() {
+        if (pendingWakeUp != null) {
+            pendingWakeUp.cancel(false);
+            pendingWakeUp = null;
+        }
+    }
+
+    /**
+     * Sends what is queued, and whatever batches and aggregates are due.
+     *
+     * @return how long until a lingering batch or an aggregate is next due ({@link Long#MAX_VALUE}
+     *     if none is), zero if a message is still being queued, or {@link #STOPPED} once the
+     *     sender has stopped and everything has been sent
+     */
+    private long drain() {
+        while (true) {
+            if (abandoned) {
+                cancelFlushRequests();
+                return STOPPED;
+            }
+            if (!flushRequests.isEmpty()) {
+                serviceFlushRequests();
+            }
+            final boolean received = pollQueue();
+            final long now = System.nanoTime();
+            final long aggregationRemainingNanos = flushDueAggregators(now);
+            if (received) {
+                if (packet.position() > 0 && maxLingerNanos > 0L && now - packetStartNanos >= maxLingerNanos) {
+                    flushPacket();
+                }
+                continue;
+            }
+
+            long remainingNanos = aggregationRemainingNanos;
+            if (producerBuffers != null) {
+                final long buffersRemainingNanos = sweepProducerBuffers(now, !running);
+                if (buffersRemainingNanos == 0L && !queue.isEmpty()) {
+                    continue;
+                }
+                remainingNanos = Math.min(remainingNanos, buffersRemainingNanos);
+            }
+            if (journal != null && !journal.isEmpty() && !replayJournal(now)) {
+                remainingNanos = Math.min(remainingNanos, nextReplayNanos - now);
+            }
+
+            if (packet.position() > 0) {
+                final long lingerRemainingNanos = maxLingerNanos - (now - packetStartNanos);
+                if (lingerRemainingNanos <= 0L || !running) {
+                    flushPacket();
+                    continue;
+                }
+                return queue.isEmpty() ? Math.min(lingerRemainingNanos, remainingNanos) : 0L;
+            }
+            else if (running) {
+                return queue.isEmpty() ? remainingNanos : 0L;
+            }
+            else if (queue.isEmpty()) {
+                for (ScheduledAggregator scheduled : aggregators) {
+                    flushAggregator(scheduled.aggregator);
+                }
+                flushPacket();
+                completeFlushRequests();
+                return STOPPED;
+            }
+        }
+    }
+
+    /**
+     * Sends everything queued before the pending flush requests were made, along with every
+     * aggregate, and then completes those requests.
+     */
+    private void serviceFlushRequests() {
+        final List<FutureTask<Void>> requests = new ArrayList<FutureTask<Void>>();
+        FutureTask<Void> request;
+        while ((request = flushRequests.poll()) != null) {
+            requests.add(request);
+        }
+        boolean swept;
+        do {
+            swept = (producerBuffers == null || sweepProducerBuffers(System.nanoTime(), true) != 0L);
+            while (!queue.isEmpty()) {
+                if (!pollQueue()) {
+                    Thread.yield(); // a producer has claimed a slot but not yet filled it
+                }
+            }
+        } while (!swept);
+        final long now = System.nanoTime();
+        for (ScheduledAggregator scheduled : aggregators) {
+            flushAggregator(scheduled.aggregator);
+            if (scheduled.removed) {
+                forget(scheduled);
+            } else {
+                scheduled.deadline = now + scheduled.intervalNanos;
+            }
+        }
+        flushPacket();
+        for (FutureTask<Void> completed : requests) {
+            completed.run();
+        }
+    }
+
+    private void completeFlushRequests() {
+        FutureTask<Void> request;
+        while ((request = flushRequests.poll()) != null) {
+            request.run();
+        }
+    }
+
+    private void cancelFlushRequests() {
+        FutureTask<Void> request;
+        while ((request = flushRequests.poll()) != null) {
+            request.cancel(false);
+        }
+    }
+
+    /**
+     * @return the time until the next aggregator is due, or {@link Long#MAX_VALUE} if there are none
+     */
+    private long flushDueAggregators(long now) {
+        long remainingNanos = Long.MAX_VALUE;
+        for (ScheduledAggregator scheduled : aggregators) {
+            if (scheduled.removed) {
+                flushAggregator(scheduled.aggregator);
+                forget(scheduled);
+                continue;
+            }
+            if (now - scheduled.deadline >= 0L) {
+                flushAggregator(scheduled.aggregator);
+                scheduled.deadline = now + scheduled.intervalNanos;
+            }
+            remainingNanos = Math.min(remainingNanos, scheduled.deadline - now);
+        }
+        return remainingNanos;
+    }
+
+    private void forget(ScheduledAggregator removed) {
+        synchronized (aggregatorsLock) {
+            final ScheduledAggregator[] updated = new ScheduledAggregator[aggregators.length - 1];
+            int i = 0;
+            for (ScheduledAggregator scheduled : aggregators) {
+                if (scheduled != removed) {
+                    updated[i++] = scheduled;
+                }
+            }
+            aggregators = updated;
+        }
+    }
+
+    private void flushAggregator(Aggregator aggregator) {
+        try {
+            aggregator.flush(aggregationEncoder, appender);
+        } catch (Exception e) {
+            reportError(e);
+        }
+    }
+
+    private void park(long nanos) {
+        sleeping = true;
+        try {
+            if (!queue.isEmpty()) {
+                Thread.yield(); // a producer has claimed a slot but not yet filled it
+            }
+            else if (running && flushRequests.isEmpty() && !buffersPending) {
+                if (nanos == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else if (nanos > 0L) {
+                    LockSupport.parkNanos(this, nanos);
+                }
+            }
+        }
+        finally {
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Takes the oldest message from the queue and appends it to the batch. Nothing is written
+     * while the message's slot is held, so that a slow write never keeps producers from the slot.
+     *
+     * @return false if no message was ready to be taken
+     */
+    private boolean pollQueue() {
+        if (!queue.poll(queuedAppender)) {
+            return false;
+        }
+        if (heldOver.position() > 0) {
+            heldOver.flip();
+            append(heldOver.array(), 0, heldOver.limit());
+            heldOver.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Appends a message straight from its slot if it joins the batch without a write, and
+     * otherwise copies it aside, to be appended by {@link #pollQueue()} once the slot is free.
+     */
+    private void appendQueued(byte[] data, int offset, int length) {
+        incomingMessages = (producerBuffers == null) ? 1 : countMessages(data, offset, length);
+        if (maxPacketSizeBytes > 0 && length <= packet.capacity()
+                && (packet.position() == 0 || length + 1 <= packet.remaining())) {
+            append(data, offset, length);
+            return;
+        }
+        if (heldOver.capacity() < length) {
+            heldOver = ByteBuffer.allocate(length);
+        }
+        heldOver.put(data, offset, length);
+    }
+
+    /**
+     * Appends a message, or a chunk of them, to the batch. Those from the queue, of which there
+     * are {@link #incomingMessages}, are counted as unsent until the batch is handed to the transport.
+     */
+    private void append(byte[] data, int offset, int length) {
+        final int messages = incomingMessages;
+        incomingMessages = 0;
+        if (length > packet.capacity()) {
+            flushPacket();
+            unsentMessages.add(-messages);
+            blockingSend(ByteBuffer.wrap(data, offset, length));
+            return;
+        }
+        if (packet.position() > 0 && length + 1 > packet.remaining()) {
+            flushPacket();
+        }
+        if (packet.position() == 0) {
+            packetStartNanos = System.nanoTime();
+        } else {
+            packet.put(MESSAGE_SEPARATOR);
+        }
+        packet.put(data, offset, length);
+        packetMessages += messages;
+        if (maxPacketSizeBytes == 0) {
+            flushPacket();
+        }
+    }
+
+    private void flushPacket() {
+        if (packet.position() == 0) {
+            return;
+        }
+        packet.flip();
+        unsentMessages.add(-packetMessages);
+        packetMessages = 0;
+        blockingSend(packet);
+        packet.clear();
+    }
+
+    private void blockingSend(ByteBuffer data) {
+        if (journal != null && !journal.isEmpty() && !replayJournal(System.nanoTime())) {
+            spill(data); // behind the batches already waiting, to keep them in order
+            return;
+        }
+        if (!write(data) && journal != null) {
+            spill(data);
+            nextReplayNanos = System.nanoTime() + SPILL_REPLAY_RETRY_NANOS;
+        }
+    }
+
+    /**
+     * @return false if the transport rejected the batch without taking any of it
+     */
+    private boolean write(ByteBuffer data) {
+        final int bytes = data.remaining();
+        final int start = data.position();
+        final long startNanos = System.nanoTime();
+        try {
+            transport.write(data);
+            telemetry.packetSent(bytes, System.nanoTime() - startNanos);
+            return true;
+        } catch (Exception e) {
+            telemetry.writeFailed();
+            reportError(e);
+            return data.position() != start;
+        }
+    }
+
+    /**
+     * Writes the batches in the journal, oldest first, unless the last attempt failed too recently.
+     *
+     * @return whether the journal is now empty
+     */
+    private boolean replayJournal(long now) {
+        if (now - nextReplayNanos < 0L) {
+            return false;
+        }
+        ByteBuffer batch;
+        while ((batch = journal.peek()) != null) {
+            if (!write(batch)) {
+                nextReplayNanos = System.nanoTime() + SPILL_REPLAY_RETRY_NANOS;
+                return false;
+            }
+            telemetry.packetReplayed();
+            journal.remove();
+        }
+        return true;
+    }
+
+    private void spill(ByteBuffer data) {
+        if (journal.fits(data.remaining())) {
+            telemetry.spillPacketsDiscarded(journal.append(data));
+            telemetry.packetSpilled();
+        } else {
+            telemetry.spillPacketsDiscarded(1);
+        }
+    }
+
+    private static int countMessages(byte[] data, int offset, int length) {
+        int messages = 1;
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] == MESSAGE_SEPARATOR) {
+                messages++;
+            }
+        }
+        return messages;
+    }
+
+    private void reportError(Exception e) {
+        telemetry.errorReported();
+        handler.handle(e);
+    }
+
+    private static final class ScheduledAggregator {
+        final Aggregator aggregator;
+        final long intervalNanos;
+        long deadline;
+        volatile boolean removed;
+
+        ScheduledAggregator(Aggregator aggregator, long intervalNanos) {
+            this.aggregator = aggregator;
+            this.intervalNanos = intervalNanos;
+            this.deadline = System.nanoTime() + intervalNanos;
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package com.timgroup.statsd;
 
+import java.lang.management.ManagementFactory;
 import java.nio.charset.Charset;
-import java.text.NumberFormat;
-import java.util.Locale;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
 
 /**
  * A simple StatsD client implementation facilitating metrics recording.
@@ -32,14 +35,37 @@ import java.util.Locale;
  */
 public final class NonBlockingStatsDClient extends ConvenienceMethodProvidingStatsDClient {
 
-    private static final Charset STATS_D_ENCODING = Charset.forName("UTF-8");
+    static final Charset STATS_D_ENCODING = Charset.forName("UTF-8");
+
+    private static final byte[] COUNTER_TYPE = MessageEncoder.ascii("|c");
+    private static final byte[] GAUGE_TYPE = MessageEncoder.ascii("|g");
+    private static final byte[] SET_TYPE = MessageEncoder.ascii("|s");
+    private static final byte[] TIMER_TYPE = MessageEncoder.ascii("|ms");
+    private static final byte[] SAMPLE_RATE_PREFIX = MessageEncoder.ascii("|@");
+    private static final double SAMPLED_OUT = -1.0d;
 
-    private static final StatsDClientErrorHandler NO_OP_HANDLER = new StatsDClientErrorHandler() {
+    static final StatsDClientErrorHandler NO_OP_HANDLER = new StatsDClientErrorHandler() {
         @Override public void handle(Exception e) { /* No-op */ }
     };
 
     private final String prefix;
-    private final NonBlockingUdpSender sender;
+    private final byte[] prefixBytes;
+    private final TagEncoder tagEncoder;
+    private final NonBlockingSender sender;
+    private final boolean ownsSender;
+    private final NonBlockingStatsDClientBuilder configuration;
+    private final boolean sampleClientSide;
+    private final SampleRates sampleRates;
+    private final CounterAggregator counterAggregator;
+    private final GaugeAggregator gaugeAggregator;
+    private final SetDeduplicator setDeduplicator;
+    private final TimerAggregator timerAggregator;
+    private final LoadShedder loadShedder;
+    private final boolean shedGaugesAndSets;
+    private final TelemetryReporter telemetryReporter;
+    private final ObjectName mbeanName;
+    private final long stopTimeoutMillis;
+    private final Thread shutdownHook;
 
     /**
      * Create a new StatsD client communicating with a StatsD instance on the
@@ -87,22 +113,203 @@ public final class NonBlockingStatsDClient extends ConvenienceMethodProvidingSta
      *     if the client could not be started
      */
     public NonBlockingStatsDClient(String prefix, String hostname, int port, StatsDClientErrorHandler errorHandler) throws StatsDClientException {
-        this.prefix = (prefix == null || prefix.trim().isEmpty()) ? "" : (prefix.trim() + ".");
+        this(new NonBlockingStatsDClientBuilder().prefix(prefix).hostname(hostname).port(port).errorHandler(errorHandler));
+    }
 
-        try {
-            this.sender = new NonBlockingUdpSender(hostname, port, STATS_D_ENCODING, errorHandler);
-        } catch (Exception e) {
-            throw new StatsDClientException("Failed to start StatsD client", e);
+    NonBlockingStatsDClient(NonBlockingStatsDClientBuilder builder) throws StatsDClientException {
+        if (builder.aggregationIntervalMillis <= 0L) {
+            throw new IllegalArgumentException("aggregationIntervalMillis must be positive: " + builder.aggregationIntervalMillis);
+        }
+        if (builder.minLoadSheddingFactor != 0.0d && !(builder.minLoadSheddingFactor > 0.0d && builder.minLoadSheddingFactor <= 1.0d)) {
+            throw new IllegalArgumentException("the minimum load shedding factor must be above zero and at most one: "
+                                               + builder.minLoadSheddingFactor);
+        }
+        this.configuration = builder.copy();
+        this.prefix = (builder.prefix == null || builder.prefix.trim().isEmpty()) ? "" : (builder.prefix.trim() + ".");
+        this.prefixBytes = MessageEncoder.utf8(prefix);
+        this.tagEncoder = new TagEncoder(builder.constantTags);
+        final byte[] constantTags = tagEncoder.constantSuffix();
+        this.sampleClientSide = builder.sampleClientSide;
+        this.sampleRates = builder.sampleRates.isEmpty() ? null : new SampleRates(builder.sampleRates);
+        this.counterAggregator = builder.aggregateCounters ? new CounterAggregator(prefixBytes, constantTags) : null;
+        this.gaugeAggregator = builder.coalesceGauges ? new GaugeAggregator(prefixBytes, constantTags) : null;
+        this.setDeduplicator = builder.deduplicateSets ? new SetDeduplicator(builder.maxSetMembers) : null;
+        this.timerAggregator = (builder.timerAggregation == TimerAggregation.NONE) ? null
+                             : new TimerAggregator(prefixBytes, constantTags, builder.timerAggregation, builder.maxTimerSamples);
+
+        this.ownsSender = (builder.sender == null);
+        this.sender = ownsSender ? builder.buildSender() : builder.sender;
+
+        if (counterAggregator != null) {
+            sender.addAggregator(counterAggregator, builder.aggregationIntervalMillis);
+        }
+        if (gaugeAggregator != null) {
+            sender.addAggregator(gaugeAggregator, builder.aggregationIntervalMillis);
+        }
+        if (setDeduplicator != null) {
+            sender.addAggregator(setDeduplicator, builder.aggregationIntervalMillis);
+        }
+        if (timerAggregator != null) {
+            sender.addAggregator(timerAggregator, builder.aggregationIntervalMillis);
+        }
+        this.loadShedder = (builder.minLoadSheddingFactor == 0.0d) ? null
+                         : new LoadShedder(sender, builder.minLoadSheddingFactor);
+        this.shedGaugesAndSets = builder.shedGaugesAndSets;
+        if (loadShedder != null) {
+            sender.addAggregator(loadShedder, LoadShedder.UPDATE_INTERVAL_MILLIS);
+        }
+        this.telemetryReporter = (builder.telemetryPrefix == null) ? null
+                               : new TelemetryReporter(sender.getTelemetry(), builder.telemetryPrefix, loadShedder);
+        if (telemetryReporter != null) {
+            sender.addAggregator(telemetryReporter, builder.aggregationIntervalMillis);
+        }
+
+        if (builder.mbeanName == null) {
+            this.mbeanName = null;
+        } else {
+            try {
+                this.mbeanName = new ObjectName("com.timgroup.statsd:type=SenderTelemetry,name=" + ObjectName.quote(builder.mbeanName));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(sender.getTelemetry(), mbeanName);
+            } catch (Exception e) {
+                releaseSender(builder.stopTimeoutMillis, TimeUnit.MILLISECONDS);
+                throw new StatsDClientException("Failed to register StatsD client telemetry", e);
+            }
+        }
+
+        this.stopTimeoutMillis = builder.stopTimeoutMillis;
+        if (builder.stopOnShutdown) {
+            this.shutdownHook = new Thread(new Runnable() {
+                @Override public void run() {
+                    stop();
+                }
+            }, "StatsD-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } else {
+            this.shutdownHook = null;
         }
     }
 
     /**
-     * Cleanly shut down this StatsD client. This method may throw an exception if
-     * the socket cannot be closed.
+     * Creates a client which adds the given prefix to this client's own, and which shares this
+     * client's sender and configuration, so that its messages are batched with this client's.
+     * The child has aggregates of its own. Stopping the child sends them and leaves the sender
+     * running, while stopping this client stops the sender for its children too.
+     *
+     * @param childPrefix
+     *     the prefix to add, after a dot, to this client's prefix
+     */
+    public NonBlockingStatsDClient withPrefix(String childPrefix) {
+        final String combined = prefix + ((childPrefix == null) ? "" : childPrefix.trim());
+        final NonBlockingStatsDClientBuilder child = configuration.copy()
+                .prefix(combined.endsWith(".") ? combined.substring(0, combined.length() - 1) : combined)
+                .sender(sender)
+                .reportTelemetry(null)
+                .registerMBean(null)
+                .stopOnShutdown(false);
+        return child.build();
+    }
+
+    /**
+     * Sends everything recorded so far, including the aggregates of every client sharing
+     * this client's sender, without waiting for batches to fill or intervals to end.
+     *
+     * @return a future which completes once all of it has been written
+     */
+    public Future<Void> flush() {
+        return sender.flush();
+    }
+
+    /**
+     * Sends everything recorded so far as {@link #flush()} does, waiting at most the given time.
+     *
+     * @return whether everything was written within the time
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        return sender.flush(timeout, unit);
+    }
+
+    /**
+     * Cleanly shut down this StatsD client, waiting for what has been recorded to be sent for
+     * at most the configured stop timeout. This method may throw an exception if the socket
+     * cannot be closed. A client attached to a shared sender sends its aggregates and leaves
+     * the sender running.
      */
     @Override
     public void stop() {
-        sender.stop();
+        stop(stopTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the client as {@link #stop()} does, after which whatever is still sent to it is
+     * quietly discarded, for a client which threads may still be racing to send to.
+     */
+    void retire() {
+        if (ownsSender) {
+            sender.discardWhenStopped();
+        }
+        stop();
+    }
+
+    /**
+     * Cleanly shut down this StatsD client, as {@link #stop()} does, giving up on whatever
+     * has not been sent by the deadline.
+     *
+     * @return the number of messages abandoned unsent
+     */
+    public long stop(long timeout, TimeUnit unit) {
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // the JVM is already shutting down
+            }
+        }
+        try {
+            return releaseSender(timeout, unit);
+        } finally {
+            if (mbeanName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+                } catch (Exception e) {
+                    // already unregistered
+                }
+            }
+        }
+    }
+
+    private long releaseSender(long timeout, TimeUnit unit) {
+        if (ownsSender) {
+            return sender.stop(timeout, unit);
+        }
+        final Aggregator[] aggregators = { counterAggregator, gaugeAggregator, setDeduplicator, timerAggregator, loadShedder, telemetryReporter };
+        for (Aggregator aggregator : aggregators) {
+            if (aggregator != null) {
+                sender.removeAggregator(aggregator);
+            }
+        }
+        return sender.flush(timeout, unit) ? 0L : sender.unsentMessageCount();
+    }
+
+    /**
+     * @return the number of messages discarded because the send queue was full
+     */
+    public long getDroppedMessageCount() {
+        return sender.getDroppedMessageCount();
+    }
+
+    /**
+     * @return the fraction of sampled events this client currently keeps while shedding load,
+     *     which is one when it is not shedding any, or does not shed load at all
+     */
+    public double getLoadSheddingFactor() {
+        return (loadShedder == null) ? 1.0d : loadShedder.factor();
+    }
+
+    /**
+     * @return the counts of what this client's sender has done since it started
+     */
+    public SenderTelemetry getTelemetry() {
+        return sender.getTelemetry();
     }
 
     /**
@@ -120,7 +327,65 @@ public final class NonBlockingStatsDClient extends ConvenienceMethodProvidingSta
      */
     @Override
     public void count(String aspect, long delta, double sampleRate) {
-        send(messageFor(aspect, Long.toString(delta), "c", sampleRate));
+        count(aspect, null, null, delta, sampleRate);
+    }
+
+    /**
+     * Adjusts the specified counter by a given delta, tagging it with the given DogStatsD tags
+     * as well as the client's constant tags.
+     *
+     * @param aspect
+     *     the name of the counter to adjust
+     * @param delta
+     *     the amount to adjust the counter by
+     * @param tags
+     *     the tags to send with the counter, such as {@code "status:200"}
+     */
+    public void count(String aspect, long delta, String... tags) {
+        count(aspect, null, tagEncoder.tagSetFor(tags), delta, 1.0);
+    }
+
+    /**
+     * Adjusts the specified counter by a given delta, at the given sampling rate, tagging it
+     * with the given DogStatsD tags as well as the client's constant tags.
+     *
+     * @param aspect
+     *     the name of the counter to adjust
+     * @param delta
+     *     the amount to adjust the counter by
+     * @param sampleRate
+     *     the sampling rate being employed
+     * @param tags
+     *     the tags to send with the counter
+     */
+    public void count(String aspect, long delta, double sampleRate, String... tags) {
+        count(aspect, null, tagEncoder.tagSetFor(tags), delta, sampleRate);
+    }
+
+    /**
+     * Adds one to the specified counter, tagging it with the given DogStatsD tags.
+     */
+    public void incrementCounter(String aspect, String... tags) {
+        count(aspect, 1L, tags);
+    }
+
+    /**
+     * Subtracts one from the specified counter, tagging it with the given DogStatsD tags.
+     */
+    public void decrementCounter(String aspect, String... tags) {
+        count(aspect, -1L, tags);
+    }
+
+    void count(String aspect, byte[] key, TagSet tags, long delta, double sampleRate) {
+        final double rate = sample(aspect, sampleRate, counterAggregator == null);
+        if (rate == SAMPLED_OUT) {
+            return;
+        }
+        if (counterAggregator != null) {
+            counterAggregator.add(aspect, tags, delta, rate);
+            return;
+        }
+        send(withTags(withSampleRate(messageFor(aspect, key).putLong(delta).put(COUNTER_TYPE), rate), tags));
     }
 
     /**
@@ -135,31 +400,112 @@ public final class NonBlockingStatsDClient extends ConvenienceMethodProvidingSta
      */
     @Override
     public void recordGaugeValue(String aspect, long value) {
-        recordGaugeCommon(aspect, Long.toString(value), value < 0, false);
+        recordGaugeValue(aspect, null, null, value);
+    }
+
+    /**
+     * Records the latest fixed value for the specified named gauge, tagging it with the given
+     * DogStatsD tags as well as the client's constant tags.
+     *
+     * @param aspect
+     *     the name of the gauge
+     * @param value
+     *     the new reading of the gauge
+     * @param tags
+     *     the tags to send with the gauge
+     */
+    public void recordGaugeValue(String aspect, long value, String... tags) {
+        recordGaugeValue(aspect, null, tagEncoder.tagSetFor(tags), value);
+    }
+
+    void recordGaugeValue(String aspect, byte[] key, TagSet tags, long value) {
+        if (gaugeAggregator != null) {
+            gaugeAggregator.recordValue(aspect, tags, value);
+            return;
+        }
+        if (shedUnsampled()) {
+            return;
+        }
+        send(withTags(gaugeValueFor(aspect, key, tags, value < 0).putLong(value).put(GAUGE_TYPE), tags));
     }
 
     @Override
     public void recordGaugeValue(String aspect, double value) {
-        recordGaugeCommon(aspect, stringValueOf(value), value < 0, false);
+        recordGaugeValue(aspect, null, null, value);
+    }
+
+    /**
+     * Records the latest fixed value for the specified named gauge, tagging it with the given
+     * DogStatsD tags as well as the client's constant tags.
+     */
+    public void recordGaugeValue(String aspect, double value, String... tags) {
+        recordGaugeValue(aspect, null, tagEncoder.tagSetFor(tags), value);
+    }
+
+    void recordGaugeValue(String aspect, byte[] key, TagSet tags, double value) {
+        if (gaugeAggregator != null) {
+            gaugeAggregator.recordValue(aspect, tags, value);
+            return;
+        }
+        if (shedUnsampled()) {
+            return;
+        }
+        send(withTags(gaugeValueFor(aspect, key, tags, value < 0).putDouble(value).put(GAUGE_TYPE), tags));
     }
 
     @Override
     public void recordGaugeDelta(String aspect, long value) {
-        recordGaugeCommon(aspect, Long.toString(value), value < 0, true);
+        recordGaugeDelta(aspect, null, null, value);
+    }
+
+    /**
+     * Adjusts the specified gauge by a given delta, tagging it with the given DogStatsD tags
+     * as well as the client's constant tags.
+     */
+    public void recordGaugeDelta(String aspect, long value, String... tags) {
+        recordGaugeDelta(aspect, null, tagEncoder.tagSetFor(tags), value);
+    }
+
+    void recordGaugeDelta(String aspect, byte[] key, TagSet tags, long value) {
+        if (gaugeAggregator != null) {
+            gaugeAggregator.recordDelta(aspect, tags, value);
+            return;
+        }
+        send(withTags(gaugeDeltaFor(aspect, key, value < 0).putLong(value).put(GAUGE_TYPE), tags));
     }
 
     @Override
     public void recordGaugeDelta(String aspect, double value) {
-        recordGaugeCommon(aspect, stringValueOf(value), value < 0, true);
+        recordGaugeDelta(aspect, null, null, value);
+    }
+
+    /**
+     * Adjusts the specified gauge by a given delta, tagging it with the given DogStatsD tags
+     * as well as the client's constant tags.
+     */
+    public void recordGaugeDelta(String aspect, double value, String... tags) {
+        recordGaugeDelta(aspect, null, tagEncoder.tagSetFor(tags), value);
+    }
+
+    void recordGaugeDelta(String aspect, byte[] key, TagSet tags, double value) {
+        if (gaugeAggregator != null) {
+            gaugeAggregator.recordDelta(aspect, tags, value);
+            return;
+        }
+        send(withTags(gaugeDeltaFor(aspect, key, value < 0).putDouble(value).put(GAUGE_TYPE), tags));
     }
 
-    private void recordGaugeCommon(String aspect, String value, boolean negative, boolean delta) {
-        final StringBuilder message = new StringBuilder();
-        if (!delta && negative) {
-            message.append(messageFor(aspect, "0", "g")).append('\n');
+    private MessageEncoder gaugeValueFor(String aspect, byte[] key, TagSet tags, boolean negative) {
+        final MessageEncoder message = MessageEncoder.forCurrentThread();
+        if (negative) {
+            withTags(appendKey(message, aspect, key).put((byte) '0').put(GAUGE_TYPE), tags).put((byte) '\n');
         }
-        message.append(messageFor(aspect, (delta && !negative) ? ("+" + value) : value, "g"));
-        send(message.toString());
+        return appendKey(message, aspect, key);
+    }
+
+    private MessageEncoder gaugeDeltaFor(String aspect, byte[] key, boolean negative) {
+        final MessageEncoder message = messageFor(aspect, key);
+        return negative ? message : message.put((byte) '+');
     }
 
     /**
@@ -175,7 +521,29 @@ public final class NonBlockingStatsDClient extends ConvenienceMethodProvidingSta
      */
     @Override
     public void recordSetEvent(String aspect, String eventName) {
-        send(messageFor(aspect, eventName, "s"));
+        recordSetEvent(aspect, null, eventName);
+    }
+
+    /**
+     * Records an occurrence of the specified named event, tagging it with the given DogStatsD
+     * tags as well as the client's constant tags.
+     *
+     * @param aspect
+     *     the name of the set
+     * @param eventName
+     *     the value to be added to the set
+     * @param tags
+     *     the tags to send with the set
+     */
+    public void recordSetEvent(String aspect, String eventName, String... tags) {
+        recordSetEvent(aspect, tagEncoder.tagSetFor(tags), eventName);
+    }
+
+    private void recordSetEvent(String aspect, TagSet tags, String eventName) {
+        if (shedUnsampled() || (setDeduplicator != null && !setDeduplicator.firstOccurrence(aspect, tags, eventName))) {
+            return;
+        }
+        send(withTags(messageFor(aspect, null).putUtf8(eventName).put(SET_TYPE), tags));
     }
 
     /**
@@ -190,28 +558,209 @@ public final class NonBlockingStatsDClient extends ConvenienceMethodProvidingSta
      */
     @Override
     public void recordExecutionTime(String aspect, long timeInMs, double sampleRate) {
-        send(messageFor(aspect, Long.toString(timeInMs), "ms", sampleRate));
+        recordExecutionTime(aspect, null, null, timeInMs, sampleRate);
+    }
+
+    /**
+     * Records an execution time in milliseconds for the specified named operation, tagging it
+     * with the given DogStatsD tags as well as the client's constant tags.
+     *
+     * @param aspect
+     *     the name of the timed operation
+     * @param timeInMs
+     *     the time in milliseconds
+     * @param tags
+     *     the tags to send with the time
+     */
+    public void recordExecutionTime(String aspect, long timeInMs, String... tags) {
+        recordExecutionTime(aspect, null, tagEncoder.tagSetFor(tags), timeInMs, 1.0);
+    }
+
+    /**
+     * Records an execution time in milliseconds for the specified named operation, at the given
+     * sampling rate, tagging it with the given DogStatsD tags as well as the client's constant tags.
+     */
+    public void recordExecutionTime(String aspect, long timeInMs, double sampleRate, String... tags) {
+        recordExecutionTime(aspect, null, tagEncoder.tagSetFor(tags), timeInMs, sampleRate);
+    }
+
+    void recordExecutionTime(String aspect, byte[] key, TagSet tags, long timeInMs, double sampleRate) {
+        final double rate = sample(aspect, sampleRate, timerAggregator == null);
+        if (rate == SAMPLED_OUT) {
+            return;
+        }
+        if (timerAggregator != null) {
+            timerAggregator.record(aspect, tags, timeInMs, rate);
+            return;
+        }
+        send(withTags(withSampleRate(messageFor(aspect, key).putLong(timeInMs).put(TIMER_TYPE), rate), tags));
+    }
+
+    /**
+     * Records an execution time in nanoseconds for the specified named operation, sent as a
+     * fractional number of milliseconds. Aggregated timers keep whole milliseconds, rounded.
+     *
+     * <p>This method is non-blocking and is guaranteed not to throw an exception.</p>
+     *
+     * @param aspect
+     *     the name of the timed operation
+     * @param timeInNanos
+     *     the time in nanoseconds
+     */
+    @Override
+    public void recordExecutionTimeNanos(String aspect, long timeInNanos, double sampleRate) {
+        recordExecutionTimeNanos(aspect, null, null, timeInNanos, sampleRate);
+    }
+
+    /**
+     * Records an execution time in nanoseconds for the specified named operation, tagging it
+     * with the given DogStatsD tags as well as the client's constant tags.
+     */
+    public void recordExecutionTimeNanos(String aspect, long timeInNanos, String... tags) {
+        recordExecutionTimeNanos(aspect, null, tagEncoder.tagSetFor(tags), timeInNanos, 1.0);
+    }
+
+    void recordExecutionTimeNanos(String aspect, byte[] key, TagSet tags, long timeInNanos, double sampleRate) {
+        final double rate = sample(aspect, sampleRate, timerAggregator == null);
+        if (rate == SAMPLED_OUT) {
+            return;
+        }
+        if (timerAggregator != null) {
+            timerAggregator.record(aspect, tags, roundedMillis(timeInNanos), rate);
+            return;
+        }
+        send(withTags(withSampleRate(messageFor(aspect, key).putDouble((double) Math.max(0L, timeInNanos) / NANOS_PER_MILLI).put(TIMER_TYPE), rate), tags));
+    }
+
+    /**
+     * Decides whether to send a sampled event, before any work is done to format it.
+     *
+     * @param queued
+     *     whether the event is to be queued for the sender, rather than aggregated, and so
+     *     subject to load shedding
+     * @return the sample rate to send the event with, or {@link #SAMPLED_OUT} to drop it
+     */
+    private double sample(String aspect, double sampleRate, boolean queued) {
+        final double shed = (queued && loadShedder != null) ? loadShedder.factor() : 1.0d;
+        if (sampleRate == 1.0 && sampleRates != null) {
+            final double rate = sampleRates.rateFor(aspect) * shed;
+            return Sampler.keep(rate) ? rate : SAMPLED_OUT;
+        }
+        if (!sampleClientSide) { // the caller has sampled at the given rate already
+            return Sampler.keep(shed) ? sampleRate * shed : SAMPLED_OUT;
+        }
+        final double rate = sampleRate * shed;
+        return Sampler.keep(rate) ? rate : SAMPLED_OUT;
+    }
+
+    /**
+     * @return whether to drop a gauge reading or set event, which cannot carry a sample rate, to shed load
+     */
+    private boolean shedUnsampled() {
+        return shedGaugesAndSets && loadShedder != null && !Sampler.keep(loadShedder.factor());
+    }
+
+    /**
+     * Creates a handle for adjusting the specified counter, with its key encoded once up front.
+     *
+     * @param aspect
+     *     the name of the counter
+     */
+    public StatsDCounter counter(String aspect) {
+        return new StatsDCounter(this, aspect, keyFor(aspect), null);
+    }
+
+    /**
+     * Creates a handle for adjusting the specified counter with the given DogStatsD tags, with
+     * its key and tags encoded once up front.
+     *
+     * @param aspect
+     *     the name of the counter
+     * @param tags
+     *     the tags to send with the counter
+     */
+    public StatsDCounter counter(String aspect, String... tags) {
+        return new StatsDCounter(this, aspect, keyFor(aspect), tagEncoder.tagSetFor(tags));
+    }
+
+    /**
+     * Creates a handle for recording readings of the specified gauge, with its key encoded once up front.
+     *
+     * @param aspect
+     *     the name of the gauge
+     */
+    public StatsDGauge gauge(String aspect) {
+        return new StatsDGauge(this, aspect, keyFor(aspect), null);
+    }
+
+    /**
+     * Creates a handle for recording readings of the specified gauge with the given DogStatsD
+     * tags, with its key and tags encoded once up front.
+     *
+     * @param aspect
+     *     the name of the gauge
+     * @param tags
+     *     the tags to send with the gauge
+     */
+    public StatsDGauge gauge(String aspect, String... tags) {
+        return new StatsDGauge(this, aspect, keyFor(aspect), tagEncoder.tagSetFor(tags));
     }
 
-    private String messageFor(String aspect, String value, String type) {
-        return messageFor(aspect, value, type, 1.0);
+    /**
+     * Creates a handle for recording execution times of the specified operation, with its key encoded
+     * once up front.
+     *
+     * @param aspect
+     *     the name of the timed operation
+     */
+    public StatsDTimer timer(String aspect) {
+        return new StatsDTimer(this, aspect, keyFor(aspect), null);
     }
 
-    private String messageFor(String aspect, String value, String type, double sampleRate) {
-        final String message = prefix + aspect + ':' + value + '|' + type;
+    /**
+     * Creates a handle for recording execution times of the specified operation with the given
+     * DogStatsD tags, with its key and tags encoded once up front.
+     *
+     * @param aspect
+     *     the name of the timed operation
+     * @param tags
+     *     the tags to send with the times
+     */
+    public StatsDTimer timer(String aspect, String... tags) {
+        return new StatsDTimer(this, aspect, keyFor(aspect), tagEncoder.tagSetFor(tags));
+    }
+
+    private byte[] keyFor(String aspect) {
+        return MessageEncoder.utf8(prefix + aspect + ":");
+    }
+
+    private MessageEncoder messageFor(String aspect, byte[] key) {
+        return appendKey(MessageEncoder.forCurrentThread(), aspect, key);
+    }
+
+    /**
+     * Writes the key for the aspect, or the given pre-encoded key if there is one.
+     */
+    private MessageEncoder appendKey(MessageEncoder message, String aspect, byte[] key) {
+        return (key == null)
+                ? message.put(prefixBytes).putUtf8(aspect).put((byte) ':')
+                : message.put(key);
+    }
+
+    private MessageEncoder withSampleRate(MessageEncoder message, double sampleRate) {
         return (sampleRate == 1.0)
                 ? message
-                : (message + "|@" + stringValueOf(sampleRate));
+                : message.put(SAMPLE_RATE_PREFIX).putDouble(sampleRate);
     }
 
-    private void send(final String message) {
-        sender.send(message);
+    /**
+     * Writes the suffix carrying the given tags, or the client's constant tags if there are none.
+     */
+    private MessageEncoder withTags(MessageEncoder message, TagSet tags) {
+        return message.put((tags == null) ? tagEncoder.constantSuffix() : tags.suffix);
     }
 
-    private String stringValueOf(double value) {
-        NumberFormat formatter = NumberFormat.getInstance(Locale.US);
-        formatter.setGroupingUsed(false);
-        formatter.setMaximumFractionDigits(19);
-        return formatter.format(value);
+    private void send(final MessageEncoder message) {
+        sender.send(message.buffer());
     }
 }
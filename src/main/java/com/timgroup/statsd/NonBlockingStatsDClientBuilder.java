@@ -0,0 +1,493 @@
+package com.timgroup.statsd;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds {@link NonBlockingStatsDClient} instances, for use when the client needs
+ * more configuration than its constructors offer.
+ *
+ * <pre>
+ *   StatsDClient statsd = new NonBlockingStatsDClientBuilder()
+ *       .prefix("my.prefix")
+ *       .hostname("statsd-host")
+ *       .port(8125)
+ *       .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES)
+ *       .maxLingerMillis(10)
+ *       .build();
+ * </pre>
+ */
+public final class NonBlockingStatsDClientBuilder {
+
+    String prefix;
+    String[] constantTags = new String[0];
+    String hostname;
+    int port;
+    long addressRefreshMillis = 0L;
+    StatsDTransport transport;
+    NonBlockingSender sender;
+    SenderExecution execution = SenderExecution.platformThread();
+    StatsDClientErrorHandler errorHandler = NonBlockingStatsDClient.NO_OP_HANDLER;
+    int maxPacketSizeBytes = 0;
+    long maxLingerMillis = 0L;
+    int queueCapacity = NonBlockingSender.DEFAULT_QUEUE_CAPACITY;
+    boolean producerBuffers = false;
+    File spillFile;
+    int spillMaxBytes;
+    QueueOverflowPolicy overflowPolicy = QueueOverflowPolicy.DROP_NEWEST;
+    long maxBlockMillis = 10L;
+    boolean sampleClientSide = false;
+    final Map<String, Double> sampleRates = new LinkedHashMap<String, Double>();
+    double minLoadSheddingFactor = 0.0d;
+    boolean shedGaugesAndSets = false;
+    long aggregationIntervalMillis = 1000L;
+    boolean aggregateCounters = false;
+    boolean coalesceGauges = false;
+    boolean deduplicateSets = false;
+    int maxSetMembers = 10000;
+    TimerAggregation timerAggregation = TimerAggregation.NONE;
+    int maxTimerSamples = 100;
+    String telemetryPrefix;
+    String mbeanName;
+    long stopTimeoutMillis = NonBlockingSender.DEFAULT_STOP_TIMEOUT_MILLIS;
+    boolean stopOnShutdown = false;
+
+    /**
+     * @param prefix
+     *     the prefix to apply to keys sent via the client (can be null or empty for no prefix)
+     */
+    public NonBlockingStatsDClientBuilder prefix(String prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+
+    /**
+     * Sets DogStatsD tags to send with every metric, such as {@code "env:prod"}. They are
+     * encoded once, when the client is built.
+     *
+     * @param constantTags
+     *     the tags to append to every message sent via the client
+     */
+    public NonBlockingStatsDClientBuilder constantTags(String... constantTags) {
+        this.constantTags = (constantTags == null) ? new String[0] : constantTags.clone();
+        return this;
+    }
+
+    /**
+     * @param hostname
+     *     the host name of the targeted StatsD server
+     */
+    public NonBlockingStatsDClientBuilder hostname(String hostname) {
+        this.hostname = hostname;
+        return this;
+    }
+
+    /**
+     * @param port
+     *     the port of the targeted StatsD server
+     */
+    public NonBlockingStatsDClientBuilder port(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Resolves the host name again at the given interval, on a background thread, so that
+     * the client follows a StatsD server whose address changes. By default the host name is
+     * resolved once, when the client is built. Ignored when a {@link #transport} is given.
+     *
+     * @param addressRefreshMillis
+     *     how often to resolve the host name, or zero to resolve it only once
+     */
+    public NonBlockingStatsDClientBuilder addressRefreshMillis(long addressRefreshMillis) {
+        this.addressRefreshMillis = addressRefreshMillis;
+        return this;
+    }
+
+    /**
+     * Sends messages through the given transport, such as a {@link TcpTransport}, instead of over
+     * UDP to the configured host name and port.
+     *
+     * @param transport
+     *     the transport to use, which the client will open and close
+     */
+    public NonBlockingStatsDClientBuilder transport(StatsDTransport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * Sends messages through a sender shared with other clients, so that the messages of every
+     * client attached to it are batched together and sent by a single thread. The sender's own
+     * transport, error handler, batching and queueing settings apply, and those of this builder
+     * are ignored. Stopping the client leaves the sender running; the sender's owner stops it
+     * once every client attached to it has stopped.
+     *
+     * <pre>
+     *   NonBlockingSender shared = new NonBlockingStatsDClientBuilder()
+     *       .hostname("statsd-host").port(8125).errorHandler(handler)
+     *       .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(10L)
+     *       .buildSender();
+     *   StatsDClient web = new NonBlockingStatsDClientBuilder().prefix("web").sender(shared).build();
+     *   StatsDClient db = new NonBlockingStatsDClientBuilder().prefix("db").sender(shared).build();
+     * </pre>
+     *
+     * @param sender
+     *     the sender to attach to, or null for the client to start a sender of its own
+     */
+    public NonBlockingStatsDClientBuilder sender(NonBlockingSender sender) {
+        this.sender = sender;
+        return this;
+    }
+
+    /**
+     * Chooses where the client's sender drains its queue and writes batches: by default on a
+     * daemon thread of its own, but also on a virtual thread, in a caller-supplied executor or
+     * scheduler, or on the threads recording metrics.
+     *
+     * @param execution
+     *     where the sender runs, such as {@link SenderExecution#callerRuns()}
+     */
+    public NonBlockingStatsDClientBuilder execution(SenderExecution execution) {
+        this.execution = execution;
+        return this;
+    }
+
+    /**
+     * @param errorHandler
+     *     handler to use when an exception occurs during usage
+     */
+    public NonBlockingStatsDClientBuilder errorHandler(StatsDClientErrorHandler errorHandler) {
+        this.errorHandler = (errorHandler == null) ? NonBlockingStatsDClient.NO_OP_HANDLER : errorHandler;
+        return this;
+    }
+
+    /**
+     * Enables batching of several messages into each datagram, or into each write for stream transports.
+     *
+     * @param maxPacketSizeBytes
+     *     the largest payload to send in a single datagram (for example
+     *     {@link NonBlockingSender#ETHERNET_MAX_PACKET_SIZE_BYTES}), or zero
+     *     to send every message in a datagram of its own
+     */
+    public NonBlockingStatsDClientBuilder maxPacketSizeBytes(int maxPacketSizeBytes) {
+        this.maxPacketSizeBytes = maxPacketSizeBytes;
+        return this;
+    }
+
+    /**
+     * @param maxLingerMillis
+     *     the longest time a batched message may wait for further messages to share its datagram
+     */
+    public NonBlockingStatsDClientBuilder maxLingerMillis(long maxLingerMillis) {
+        this.maxLingerMillis = maxLingerMillis;
+        return this;
+    }
+
+    /**
+     * @param queueCapacity
+     *     the number of messages that may wait to be sent (rounded up to a power of two)
+     */
+    public NonBlockingStatsDClientBuilder queueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * Has each thread recording metrics join its messages into a chunk of its own, which is
+     * queued in one go once it is full or once it has waited for the maximum linger time, so
+     * that busy threads contend for the send queue once per chunk rather than once per message.
+     * Chunks are as large as a batch, so batching must be enabled, and the queue capacity and
+     * queue size then count chunks. Chunks left by threads which have died are sent too.
+     *
+     * @param producerBuffers
+     *     whether to buffer messages per thread before queueing them
+     */
+    public NonBlockingStatsDClientBuilder producerBuffers(boolean producerBuffers) {
+        this.producerBuffers = producerBuffers;
+        return this;
+    }
+
+    /**
+     * Keeps batches the transport rejects, such as while the StatsD server is down, in a
+     * memory-mapped {@link SpillJournal} of bounded size, and sends them in order once it
+     * accepts writes again. When the journal is full, its oldest batches are discarded.
+     *
+     * @param file
+     *     the file to keep the batches in, or null to discard them
+     * @param maxBytes
+     *     the most bytes the journal may hold
+     */
+    public NonBlockingStatsDClientBuilder spillJournal(File file, int maxBytes) {
+        this.spillFile = file;
+        this.spillMaxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @param overflowPolicy
+     *     what to do with a new message when the send queue is full (by default, it is dropped)
+     */
+    public NonBlockingStatsDClientBuilder overflowPolicy(QueueOverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * @param maxBlockMillis
+     *     the longest time to wait for room in a full queue under {@link QueueOverflowPolicy#BLOCK}
+     */
+    public NonBlockingStatsDClientBuilder maxBlockMillis(long maxBlockMillis) {
+        this.maxBlockMillis = maxBlockMillis;
+        return this;
+    }
+
+    /**
+     * Whether the client itself drops events recorded with a sample rate below one, so that only
+     * that fraction of them is sent. By default it does not: the rate is taken to be the one the
+     * caller has sampled at already, and is only passed on to StatsD.
+     */
+    public NonBlockingStatsDClientBuilder sampleClientSide(boolean sampleClientSide) {
+        this.sampleClientSide = sampleClientSide;
+        return this;
+    }
+
+    /**
+     * Sets a default sample rate for counters and timers recorded without one. The rate applies to
+     * the named aspect and every aspect beneath it, so {@code "http"} covers {@code "http.requests"};
+     * where several names match, the longest wins. Events are sampled by the client at this rate
+     * whatever {@link #sampleClientSide} is set to.
+     *
+     * @param aspect
+     *     the name of an aspect, or of a branch of aspects, without the client's prefix
+     * @param sampleRate
+     *     the fraction of events to send, between zero and one
+     */
+    public NonBlockingStatsDClientBuilder defaultSampleRate(String aspect, double sampleRate) {
+        this.sampleRates.put(aspect, Double.valueOf(sampleRate));
+        return this;
+    }
+
+    /**
+     * Enables adaptive load shedding: while the sender falls behind, with its queue filling up
+     * or its time taken up writing, the client lowers the sample rate of counters and timers by
+     * a factor that falls smoothly towards the given minimum, and rises again once the sender
+     * has caught up. The lowered rate is sent with each event, so StatsD still sees the right
+     * totals. Counters and timers aggregated by the client are not shed, as they do not load
+     * the sender. The factor in force is given by {@link NonBlockingStatsDClient#getLoadSheddingFactor()}.
+     *
+     * @param minFactor
+     *     the lowest fraction of events to keep, above zero and at most one
+     */
+    public NonBlockingStatsDClientBuilder loadShedding(double minFactor) {
+        this.minLoadSheddingFactor = minFactor;
+        return this;
+    }
+
+    /**
+     * Whether load shedding also drops gauge readings and set events, at the same factor. Since
+     * StatsD takes no sample rate for them, they are dropped without correction, which loses
+     * intermediate gauge readings and may undercount sets. Gauge deltas are never shed.
+     */
+    public NonBlockingStatsDClientBuilder shedGaugesAndSets(boolean shedGaugesAndSets) {
+        this.shedGaugesAndSets = shedGaugesAndSets;
+        return this;
+    }
+
+    /**
+     * @param aggregationIntervalMillis
+     *     how often client-side aggregates are sent, when any are enabled
+     */
+    public NonBlockingStatsDClientBuilder aggregationIntervalMillis(long aggregationIntervalMillis) {
+        this.aggregationIntervalMillis = aggregationIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Enables client-side aggregation of counters, so that the deltas recorded for each
+     * aspect are summed and sent as a single message every aggregation interval.
+     * Sampled deltas are scaled by their sample rate before being summed.
+     */
+    public NonBlockingStatsDClientBuilder aggregateCounters(boolean aggregateCounters) {
+        this.aggregateCounters = aggregateCounters;
+        return this;
+    }
+
+    /**
+     * Enables client-side coalescing of gauges, so that only the latest value recorded for
+     * each aspect is sent every aggregation interval. Deltas are summed into the pending value.
+     */
+    public NonBlockingStatsDClientBuilder coalesceGauges(boolean coalesceGauges) {
+        this.coalesceGauges = coalesceGauges;
+        return this;
+    }
+
+    /**
+     * Enables client-side de-duplication of set members, so that a member is sent only the
+     * first time it is recorded for a set in each aggregation interval.
+     */
+    public NonBlockingStatsDClientBuilder deduplicateSets(boolean deduplicateSets) {
+        this.deduplicateSets = deduplicateSets;
+        return this;
+    }
+
+    /**
+     * @param maxSetMembers
+     *     the most set members to remember per interval, across all sets, when de-duplicating
+     *     sets; members beyond this are sent without being checked
+     */
+    public NonBlockingStatsDClientBuilder maxSetMembers(int maxSetMembers) {
+        this.maxSetMembers = maxSetMembers;
+        return this;
+    }
+
+    /**
+     * Enables client-side aggregation of execution times, so that the times recorded for
+     * each aspect are summarised in a histogram of fixed size and sent in the given form
+     * every aggregation interval.
+     *
+     * @param timerAggregation
+     *     how to summarise execution times, or {@link TimerAggregation#NONE} to send each one
+     */
+    public NonBlockingStatsDClientBuilder aggregateTimers(TimerAggregation timerAggregation) {
+        this.timerAggregation = (timerAggregation == null) ? TimerAggregation.NONE : timerAggregation;
+        return this;
+    }
+
+    /**
+     * @param maxTimerSamples
+     *     the most timer messages to send per aspect per interval under {@link TimerAggregation#SAMPLES}
+     */
+    public NonBlockingStatsDClientBuilder maxTimerSamples(int maxTimerSamples) {
+        this.maxTimerSamples = maxTimerSamples;
+        return this;
+    }
+
+    /**
+     * Sends the client's own {@link SenderTelemetry} as metrics, every aggregation interval:
+     * counters of the messages queued and dropped, packets and bytes sent, and errors, and
+     * gauges of the queue size and of the mean and longest write times in milliseconds.
+     *
+     * @param telemetryPrefix
+     *     the prefix of the telemetry metrics, used instead of the client's own prefix, or
+     *     null not to send them
+     */
+    public NonBlockingStatsDClientBuilder reportTelemetry(String telemetryPrefix) {
+        this.telemetryPrefix = telemetryPrefix;
+        return this;
+    }
+
+    /**
+     * Registers the client's {@link SenderTelemetry} with the platform MBean server, as
+     * {@code com.timgroup.statsd:type=SenderTelemetry,name=<mbeanName>}, until the client stops.
+     *
+     * @param mbeanName
+     *     a name for the client unique within the JVM, or null not to register it
+     */
+    public NonBlockingStatsDClientBuilder registerMBean(String mbeanName) {
+        this.mbeanName = mbeanName;
+        return this;
+    }
+
+    /**
+     * @param stopTimeoutMillis
+     *     the longest time {@link NonBlockingStatsDClient#stop()} waits for what has been recorded
+     *     to be sent, after which it is abandoned
+     */
+    public NonBlockingStatsDClientBuilder stopTimeoutMillis(long stopTimeoutMillis) {
+        this.stopTimeoutMillis = stopTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Registers a JVM shutdown hook which stops the client, so that what has been recorded is
+     * sent before the JVM exits even if the client is never stopped explicitly. Stopping the
+     * client removes the hook.
+     */
+    public NonBlockingStatsDClientBuilder stopOnShutdown(boolean stopOnShutdown) {
+        this.stopOnShutdown = stopOnShutdown;
+        return this;
+    }
+
+    /**
+     * @return a new builder with the same configuration as this one
+     */
+    NonBlockingStatsDClientBuilder copy() {
+        final NonBlockingStatsDClientBuilder copy = new NonBlockingStatsDClientBuilder();
+        copy.prefix = prefix;
+        copy.constantTags = constantTags;
+        copy.hostname = hostname;
+        copy.port = port;
+        copy.addressRefreshMillis = addressRefreshMillis;
+        copy.transport = transport;
+        copy.sender = sender;
+        copy.execution = execution;
+        copy.errorHandler = errorHandler;
+        copy.maxPacketSizeBytes = maxPacketSizeBytes;
+        copy.maxLingerMillis = maxLingerMillis;
+        copy.queueCapacity = queueCapacity;
+        copy.producerBuffers = producerBuffers;
+        copy.spillFile = spillFile;
+        copy.spillMaxBytes = spillMaxBytes;
+        copy.overflowPolicy = overflowPolicy;
+        copy.maxBlockMillis = maxBlockMillis;
+        copy.sampleClientSide = sampleClientSide;
+        copy.sampleRates.putAll(sampleRates);
+        copy.minLoadSheddingFactor = minLoadSheddingFactor;
+        copy.shedGaugesAndSets = shedGaugesAndSets;
+        copy.aggregationIntervalMillis = aggregationIntervalMillis;
+        copy.aggregateCounters = aggregateCounters;
+        copy.coalesceGauges = coalesceGauges;
+        copy.deduplicateSets = deduplicateSets;
+        copy.maxSetMembers = maxSetMembers;
+        copy.timerAggregation = timerAggregation;
+        copy.maxTimerSamples = maxTimerSamples;
+        copy.telemetryPrefix = telemetryPrefix;
+        copy.mbeanName = mbeanName;
+        copy.stopTimeoutMillis = stopTimeoutMillis;
+        copy.stopOnShutdown = stopOnShutdown;
+        return copy;
+    }
+
+    /**
+     * @return a new client, connected as configured
+     * @throws StatsDClientException
+     *     if the client could not be started
+     */
+    public NonBlockingStatsDClient build() throws StatsDClientException {
+        return new NonBlockingStatsDClient(this);
+    }
+
+    /**
+     * Builds a sender alone, for clients to share through {@link #sender(NonBlockingSender)}. Only
+     * the settings for the sender apply: the transport or host name and port, error handler,
+     * execution, batching, queueing and spill file. Whoever builds the sender stops it.
+     *
+     * @return a new sender, connected as configured
+     * @throws StatsDClientException
+     *     if the sender could not be started
+     */
+    public NonBlockingSender buildSender() throws StatsDClientException {
+        SpillJournal journal = null;
+        try {
+            journal = (spillFile == null) ? null : new SpillJournal(spillFile, spillMaxBytes);
+            final StatsDTransport senderTransport = (transport == null)
+                    ? new UdpTransport(hostname, port, addressRefreshMillis, errorHandler)
+                    : transport;
+            return new NonBlockingSender(senderTransport, NonBlockingStatsDClient.STATS_D_ENCODING, errorHandler,
+                                         maxPacketSizeBytes, maxLingerMillis, queueCapacity, overflowPolicy, maxBlockMillis,
+                                         execution, producerBuffers, journal);
+        } catch (Exception e) {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException closing) {
+                    // already failing
+                }
+            }
+            throw new StatsDClientException("Failed to start StatsD client", e);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.timgroup.statsd;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Messages queued by one producer thread, joined with newlines into a chunk which is handed
+ * to the sender's queue in one go: by the producer once the chunk is full, or by the sender
+ * once it has waited long enough, once its thread has died, or when flushing or stopping.
+ *
+ * <p>The lock is only taken by the owning thread to append, and by the sender to hand the
+ * chunk over, so it is almost never contended and stays in the owning core's cache. A full
+ * chunk is {@link #take() taken} out under the lock and queued by its owner after unlocking,
+ * so that a producer waiting for room in the queue never keeps the sender from the lock.</p>
+ */
+final class ProducerBuffer {
+
+    private static final byte MESSAGE_SEPARATOR = '\n';
+
+    final ReentrantLock lock = new ReentrantLock();
+
+    private final WeakReference<Thread> owner;
+    private byte[] data;
+    private ByteBuffer contents;
+    private byte[] taken;
+    private ByteBuffer takenContents;
+    private int length;
+    private int messages;
+    private long firstMessageNanos;
+
+    ProducerBuffer(Thread owner, int capacity) {
+        this.owner = new WeakReference<Thread>(owner);
+        this.data = new byte[capacity];
+        this.contents = ByteBuffer.wrap(data);
+        this.taken = new byte[capacity];
+        this.takenContents = ByteBuffer.wrap(taken);
+    }
+
+    /**
+     * Appends the remaining bytes of the given buffer, consuming them, if they fit.
+     *
+     * @return false if the message does not fit, in which case nothing is appended
+     */
+    boolean append(ByteBuffer message) {
+        final int size = message.remaining();
+        if (messages == 0) {
+            if (size > data.length) {
+                return false;
+            }
+            firstMessageNanos = System.nanoTime();
+        } else {
+            if (length + 1 + size > data.length) {
+                return false;
+            }
+            data[length++] = MESSAGE_SEPARATOR;
+        }
+        message.get(data, length, size);
+        length += size;
+        messages++;
+        return true;
+    }
+
+    /**
+     * @return the chunk, ready to be queued; it remains in this buffer until {@link #clear()}
+     */
+    ByteBuffer contents() {
+        contents.clear();
+        contents.limit(length);
+        return contents;
+    }
+
+    /**
+     * Takes the chunk out, leaving this buffer empty. Only the owner may take a chunk, and
+     * it must have queued or discarded the last one it took before it takes the next.
+     *
+     * @return the chunk, ready to be queued
+     */
+    ByteBuffer take() {
+        final ByteBuffer chunk = contents();
+        final byte[] emptied = taken;
+        final ByteBuffer emptiedContents = takenContents;
+        taken = data;
+        takenContents = contents;
+        data = emptied;
+        contents = emptiedContents;
+        clear();
+        return chunk;
+    }
+
+    void clear() {
+        length = 0;
+        messages = 0;
+    }
+
+    boolean isEmpty() {
+        return messages == 0;
+    }
+
+    int messages() {
+        return messages;
+    }
+
+    long firstMessageNanos() {
+        return firstMessageNanos;
+    }
+
+    boolean isOwnerAlive() {
+        final Thread thread = owner.get();
+        return thread != null && thread.isAlive();
+    }
+}
@@ -0,0 +1,29 @@
+package com.timgroup.statsd;
+
+/**
+ * Describes what a StatsD client does with a new message when its bounded send
+ * queue is full, which happens when messages are recorded faster than they can
+ * be written to the StatsD server. Every message discarded in this way is counted.
+ *
+ * @see NonBlockingStatsDClient#getDroppedMessageCount()
+ */
+public enum QueueOverflowPolicy {
+
+    /**
+     * Discard the new message, leaving the queue untouched. Recording a metric never waits.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Discard the oldest queued message to make room for the new one, favouring fresh data.
+     * Recording a metric never waits.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Wait briefly, up to the configured maximum blocking time, for room in the queue and
+     * discard the new message if none becomes available.
+     */
+    BLOCK
+
+}
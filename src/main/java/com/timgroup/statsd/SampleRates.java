@@ -0,0 +1,59 @@
+package com.timgroup.statsd;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Default sample rates configured by aspect name. A rate configured for a name applies to
+ * that aspect and to every aspect beneath it in the dotted hierarchy, with the longest
+ * matching name taking precedence. Resolved rates are cached per aspect.
+ */
+final class SampleRates {
+
+    private static final int MAX_CACHED_ASPECTS = 4096;
+    private static final Double NO_SAMPLING = Double.valueOf(1.0d);
+
+    private final Map<String, Double> configured;
+    private final ConcurrentMap<String, Double> resolved = new ConcurrentHashMap<String, Double>();
+
+    SampleRates(Map<String, Double> configured) {
+        for (Map.Entry<String, Double> entry : configured.entrySet()) {
+            final double rate = entry.getValue().doubleValue();
+            if (!(rate >= 0.0d && rate <= 1.0d)) {
+                throw new IllegalArgumentException("sample rate for " + entry.getKey() + " must be between 0 and 1: " + rate);
+            }
+        }
+        this.configured = new HashMap<String, Double>(configured);
+    }
+
+    double rateFor(String aspect) {
+        if (aspect == null) {
+            return 1.0d;
+        }
+        final Double cached = resolved.get(aspect);
+        if (cached != null) {
+            return cached.doubleValue();
+        }
+        final Double rate = resolve(aspect);
+        if (resolved.size() < MAX_CACHED_ASPECTS) {
+            resolved.putIfAbsent(aspect, rate);
+        }
+        return rate.doubleValue();
+    }
+
+    private Double resolve(String aspect) {
+        final Double exact = configured.get(aspect);
+        if (exact != null) {
+            return exact;
+        }
+        for (int dot = aspect.lastIndexOf('.'); dot > 0; dot = aspect.lastIndexOf('.', dot - 1)) {
+            final Double parent = configured.get(aspect.substring(0, dot));
+            if (parent != null) {
+                return parent;
+            }
+        }
+        return NO_SAMPLING;
+    }
+}
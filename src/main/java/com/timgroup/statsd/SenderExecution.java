@@ -0,0 +1,137 @@
+package com.timgroup.statsd;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decides where a {@link NonBlockingSender} drains its queue and writes its batches.
+ *
+ * <p>In the thread-based forms, the sender runs a loop which waits for messages between
+ * batches. With {@link #scheduler}, and with {@link #callerRuns}, the sender instead runs
+ * a short pass whenever there is something to send, and waits for nothing.</p>
+ */
+public final class SenderExecution {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    private static final Executor CALLER = new Executor() {
+        @Override public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /** Runs the sender's drain loop, which only returns once the sender has stopped; null when draining in passes. */
+    final Executor loopRunner;
+
+    /** Runs each drain pass; null when draining in a loop. */
+    final Executor passRunner;
+
+    /** Wakes the sender when a batch has lingered long enough or aggregates are due; null if nothing does. */
+    final ScheduledExecutorService timer;
+
+    private SenderExecution(Executor loopRunner, Executor passRunner, ScheduledExecutorService timer) {
+        this.loopRunner = loopRunner;
+        this.passRunner = passRunner;
+        this.timer = timer;
+    }
+
+    /**
+     * Drains the queue on a dedicated daemon thread of the sender's own, as senders always have.
+     */
+    public static SenderExecution platformThread() {
+        return new SenderExecution(new Executor() {
+            final ThreadFactory delegate = Executors.defaultThreadFactory();
+            @Override public void execute(Runnable command) {
+                final Thread thread = delegate.newThread(command);
+                thread.setName("StatsD-" + thread.getName());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }, null, null);
+    }
+
+    /**
+     * Drains the queue on a virtual thread of the sender's own. Virtual threads need Java 21
+     * or later, so starting a sender this way fails on older runtimes; see
+     * {@link #isVirtualThreadSupported()}.
+     */
+    public static SenderExecution virtualThread() {
+        return new SenderExecution(new Executor() {
+            @Override public void execute(Runnable command) {
+                if (!isVirtualThreadSupported()) {
+                    throw new UnsupportedOperationException("virtual threads are not supported by this JVM (Java 21 or later is needed)");
+                }
+                final Thread thread;
+                try {
+                    thread = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), command);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Failed to create a virtual thread", e);
+                }
+                thread.setName("StatsD-virtual-sender");
+                thread.start();
+            }
+        }, null, null);
+    }
+
+    /**
+     * Drains the queue in a task submitted to the given executor, which occupies one of its
+     * threads until the sender stops.
+     *
+     * @param executor
+     *     an executor which can spare a thread for as long as the sender runs
+     */
+    public static SenderExecution executor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must be specified");
+        }
+        return new SenderExecution(executor, null, null);
+    }
+
+    /**
+     * Drains the queue in short tasks submitted to the given scheduler whenever there are messages
+     * to send, and scheduled on it for when a lingering batch or an aggregate is due, so that the
+     * sender never holds one of its threads while waiting. This suits event loops.
+     *
+     * @param scheduler
+     *     the scheduler to run each pass of the sender on
+     */
+    public static SenderExecution scheduler(ScheduledExecutorService scheduler) {
+        if (scheduler == null) {
+            throw new IllegalArgumentException("scheduler must be specified");
+        }
+        return new SenderExecution(null, scheduler, scheduler);
+    }
+
+    /**
+     * Drains the queue on the threads recording metrics, as they record them, so that the sender
+     * has no thread at all. Batches waiting for more messages, and aggregates which have come due,
+     * are only sent on the next call to the sender, or when it stops.
+     */
+    public static SenderExecution callerRuns() {
+        return new SenderExecution(null, CALLER, null);
+    }
+
+    /**
+     * @return whether the running JVM supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return OF_VIRTUAL != null;
+    }
+}
@@ -0,0 +1,188 @@
+package com.timgroup.statsd;
+
+/**
+ * Counts what a {@link NonBlockingSender} has done since it started, so that it can be
+ * seen whether it is keeping up: messages queued and discarded, packets and bytes
+ * written, errors, the time spent writing to the transport, and packets spilled to a
+ * {@link SpillJournal} and replayed from it.
+ *
+ * <p>The counts are kept in striped cells, so producers recording them do not contend
+ * with one another, and are only added up when read. Each count is read on its own, so
+ * counts read together may be out of step by the messages in flight.</p>
+ */
+public final class SenderTelemetry implements SenderTelemetryMBean {
+
+    private final MessageRingBuffer queue;
+    private final StripedAccumulator queuedMessages = new StripedAccumulator();
+    private final StripedAccumulator droppedMessages = new StripedAccumulator();
+    private final StripedAccumulator sentPackets = new StripedAccumulator();
+    private final StripedAccumulator sentBytes = new StripedAccumulator();
+    private final StripedAccumulator writeErrors = new StripedAccumulator();
+    private final StripedAccumulator errors = new StripedAccumulator();
+    private final StripedAccumulator sendNanos = new StripedAccumulator();
+    private final StripedAccumulator spilledPackets = new StripedAccumulator();
+    private final StripedAccumulator replayedPackets = new StripedAccumulator();
+    private final StripedAccumulator discardedSpillPackets = new StripedAccumulator();
+    private volatile long maxSendNanos;
+    private long intervalMaxSendNanos;
+
+    SenderTelemetry(MessageRingBuffer queue) {
+        this.queue = queue;
+    }
+
+    void messageQueued() {
+        queuedMessages.add(1L);
+    }
+
+    void messageDropped() {
+        droppedMessages.add(1L);
+    }
+
+    void messagesQueued(int count) {
+        queuedMessages.add(count);
+    }
+
+    void messagesDropped(int count) {
+        droppedMessages.add(count);
+    }
+
+    /**
+     * Records a successful write. Only ever called from the sender thread.
+     */
+    void packetSent(int bytes, long nanos) {
+        sentPackets.add(1L);
+        sentBytes.add(bytes);
+        sendNanos.add(nanos);
+        if (nanos > maxSendNanos) {
+            maxSendNanos = nanos;
+        }
+        if (nanos > intervalMaxSendNanos) {
+            intervalMaxSendNanos = nanos;
+        }
+    }
+
+    void writeFailed() {
+        writeErrors.add(1L);
+    }
+
+    void errorReported() {
+        errors.add(1L);
+    }
+
+    void packetSpilled() {
+        spilledPackets.add(1L);
+    }
+
+    void packetReplayed() {
+        replayedPackets.add(1L);
+    }
+
+    void spillPacketsDiscarded(int count) {
+        discardedSpillPackets.add(count);
+    }
+
+    /**
+     * @return the longest write since this method was last called; only to be called from the sender thread
+     */
+    long drainIntervalMaxSendNanos() {
+        final long max = intervalMaxSendNanos;
+        intervalMaxSendNanos = 0L;
+        return max;
+    }
+
+    /**
+     * @return the number of messages currently waiting for the sender thread
+     */
+    @Override
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of messages accepted into the queue
+     */
+    @Override
+    public long getQueuedMessageCount() {
+        return queuedMessages.sumLong();
+    }
+
+    /**
+     * @return the number of messages discarded because the queue was full
+     */
+    @Override
+    public long getDroppedMessageCount() {
+        return droppedMessages.sumLong();
+    }
+
+    /**
+     * @return the number of batches written to the transport
+     */
+    @Override
+    public long getSentPacketCount() {
+        return sentPackets.sumLong();
+    }
+
+    /**
+     * @return the number of bytes written to the transport
+     */
+    @Override
+    public long getSentByteCount() {
+        return sentBytes.sumLong();
+    }
+
+    /**
+     * @return the number of batches the transport failed to write
+     */
+    @Override
+    public long getWriteErrorCount() {
+        return writeErrors.sumLong();
+    }
+
+    /**
+     * @return the number of errors of any kind passed to the error handler
+     */
+    @Override
+    public long getErrorCount() {
+        return errors.sumLong();
+    }
+
+    /**
+     * @return the total time spent in successful writes to the transport
+     */
+    @Override
+    public long getTotalSendNanos() {
+        return sendNanos.sumLong();
+    }
+
+    /**
+     * @return the longest time spent in a successful write to the transport
+     */
+    @Override
+    public long getMaxSendNanos() {
+        return maxSendNanos;
+    }
+
+    /**
+     * @return the number of batches kept in the spill journal because they could not be written
+     */
+    @Override
+    public long getSpilledPacketCount() {
+        return spilledPackets.sumLong();
+    }
+
+    /**
+     * @return the number of batches from the spill journal written since
+     */
+    @Override
+    public long getReplayedPacketCount() {
+        return replayedPackets.sumLong();
+    }
+
+    /**
+     * @return the number of batches discarded because they did not fit the spill journal
+     */
+    @Override
+    public long getDiscardedSpillPacketCount() {
+        return discardedSpillPackets.sumLong();
+    }
+}
@@ -0,0 +1,33 @@
+package com.timgroup.statsd;
+
+/**
+ * The management interface of {@link SenderTelemetry}, through which JMX clients
+ * can watch how well a StatsD client is keeping up.
+ */
+public interface SenderTelemetryMBean {
+
+    int getQueueSize();
+
+    long getQueuedMessageCount();
+
+    long getDroppedMessageCount();
+
+    long getSentPacketCount();
+
+    long getSentByteCount();
+
+    long getWriteErrorCount();
+
+    long getErrorCount();
+
+    long getTotalSendNanos();
+
+    long getMaxSendNanos();
+
+    long getSpilledPacketCount();
+
+    long getReplayedPacketCount();
+
+    long getDiscardedSpillPacketCount();
+
+}
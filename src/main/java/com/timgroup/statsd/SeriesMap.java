@@ -0,0 +1,123 @@
+package com.timgroup.statsd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The state an aggregator keeps per series, a series being an aspect along with the
+ * tags given with it. Series without tags of their own are looked up by aspect alone,
+ * and tagged series by their shared {@link TagSet} and then by aspect, so that neither
+ * lookup allocates once the series exists.
+ *
+ * <p>A series with nothing to send when it is flushed, having been idle for a whole
+ * interval, is forgotten, so that aspects and tags which come and go do not pile up.
+ * A thread may still be recording into a series as it is forgotten, so a forgotten
+ * series is flushed once more at the next flush, before it is let go.</p>
+ */
+abstract class SeriesMap<V> {
+
+    /**
+     * Sends the state of a series as it is flushed.
+     */
+    interface Writer<V> {
+        /**
+         * @return false if the series had nothing to send
+         */
+        boolean write(String aspect, V value, byte[] tags, MessageEncoder encoder, MessageRingBuffer.Handler out);
+    }
+
+    private final ConcurrentMap<String, V> untagged = new ConcurrentHashMap<String, V>();
+    private final ConcurrentMap<TagSet, ConcurrentMap<String, V>> tagged = new ConcurrentHashMap<TagSet, ConcurrentMap<String, V>>();
+    private final List<Forgotten<V>> forgotten = new ArrayList<Forgotten<V>>();
+
+    /**
+     * @return the state of the series, created if it did not exist
+     */
+    final V get(String aspect, TagSet tags) {
+        final ConcurrentMap<String, V> series = (tags == null) ? untagged : taggedWith(tags);
+        final String key = String.valueOf(aspect);
+        final V existing = series.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final V created = create();
+        final V raced = series.putIfAbsent(key, created);
+        return (raced == null) ? created : raced;
+    }
+
+    /**
+     * Writes every series, and those forgotten at the last flush, forgetting those with
+     * nothing to send. Only called by the sender thread.
+     *
+     * @param constantTags
+     *     the suffix carrying the client's constant tags, for series without tags of their own
+     */
+    final void flush(byte[] constantTags, Writer<V> writer, MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        if (!forgotten.isEmpty()) {
+            for (Forgotten<V> series : forgotten) {
+                for (Map.Entry<String, V> entry : series.values.entrySet()) {
+                    writer.write(entry.getKey(), entry.getValue(), series.tags, encoder, out);
+                }
+            }
+            forgotten.clear();
+        }
+        flush(untagged, constantTags, writer, encoder, out);
+        for (Map.Entry<TagSet, ConcurrentMap<String, V>> group : tagged.entrySet()) {
+            flush(group.getValue(), group.getKey().suffix, writer, encoder, out);
+            if (group.getValue().isEmpty() && tagged.remove(group.getKey(), group.getValue())) {
+                forgotten.add(new Forgotten<V>(group.getValue(), group.getKey().suffix));
+            }
+        }
+    }
+
+    /**
+     * @return the number of series held, not counting those forgotten
+     */
+    final int size() {
+        int size = untagged.size();
+        for (ConcurrentMap<String, V> group : tagged.values()) {
+            size += group.size();
+        }
+        return size;
+    }
+
+    abstract V create();
+
+    private void flush(ConcurrentMap<String, V> series, byte[] tags, Writer<V> writer,
+                       MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        for (Map.Entry<String, V> entry : series.entrySet()) {
+            if (!writer.write(entry.getKey(), entry.getValue(), tags, encoder, out)
+                    && series.remove(entry.getKey(), entry.getValue())) {
+                final ConcurrentMap<String, V> values = new ConcurrentHashMap<String, V>(2);
+                values.put(entry.getKey(), entry.getValue());
+                forgotten.add(new Forgotten<V>(values, tags));
+            }
+        }
+    }
+
+    private ConcurrentMap<String, V> taggedWith(TagSet tags) {
+        final ConcurrentMap<String, V> existing = tagged.get(tags);
+        if (existing != null) {
+            return existing;
+        }
+        final ConcurrentMap<String, V> created = new ConcurrentHashMap<String, V>();
+        final ConcurrentMap<String, V> raced = tagged.putIfAbsent(tags, created);
+        return (raced == null) ? created : raced;
+    }
+
+    /**
+     * Series forgotten at the last flush, which may yet have been recorded into since.
+     */
+    private static final class Forgotten<V> {
+        final Map<String, V> values;
+        final byte[] tags;
+
+        Forgotten(Map<String, V> values, byte[] tags) {
+            this.values = values;
+            this.tags = tags;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers which members have been sent for each set during the current aggregation
+ * interval, so that repeated occurrences of a member are not sent again until the next one.
+ *
+ * <p>At most a fixed number of members are remembered across all sets in an interval.
+ * Beyond that, members are sent without being checked, which StatsD copes with anyway
+ * since it counts each member of a set once.</p>
+ */
+final class SetDeduplicator implements Aggregator {
+
+    private final int maxMembers;
+    private volatile Window window = new Window();
+
+    SetDeduplicator(int maxMembers) {
+        if (maxMembers <= 0) {
+            throw new IllegalArgumentException("maxSetMembers must be positive: " + maxMembers);
+        }
+        this.maxMembers = maxMembers;
+    }
+
+    /**
+     * @return whether the member should be sent, being the first occurrence seen in this interval
+     */
+    boolean firstOccurrence(String aspect, TagSet tags, String member) {
+        final Window current = window;
+        final ConcurrentMap<String, Boolean> members = current.sets.get(aspect, tags);
+        final String key = String.valueOf(member);
+        if (members.containsKey(key)) {
+            return false;
+        }
+        if (current.size.incrementAndGet() > maxMembers) {
+            current.size.decrementAndGet();
+            return true;
+        }
+        if (members.putIfAbsent(key, Boolean.TRUE) != null) {
+            current.size.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void flush(MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        window = new Window();
+    }
+
+    private static final class Window {
+        final SeriesMap<ConcurrentMap<String, Boolean>> sets = new SeriesMap<ConcurrentMap<String, Boolean>>() {
+            @Override ConcurrentMap<String, Boolean> create() {
+                return new ConcurrentHashMap<String, Boolean>();
+            }
+        };
+        final AtomicInteger size = new AtomicInteger();
+    }
+}
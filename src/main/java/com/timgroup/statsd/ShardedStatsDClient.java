@@ -0,0 +1,194 @@
+package com.timgroup.statsd;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A StatsD client which spreads metrics across several StatsD servers, sending every
+ * metric of a given aspect to the same server, so that each server sees the whole of
+ * the aspects it is given.
+ *
+ * <p>Aspects are assigned to servers by consistent hashing. Servers may be added and
+ * removed while the client is in use, and only the aspects which the change assigns to
+ * a different server move. Each server has a {@link NonBlockingStatsDClient} of its own,
+ * built from the template given to this client, and with it its own queue, batching and
+ * client-side aggregation.</p>
+ *
+ * <pre>
+ *   ShardedStatsDClient statsd = new ShardedStatsDClient(new NonBlockingStatsDClientBuilder()
+ *       .prefix("my.prefix")
+ *       .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES));
+ *   statsd.addEndpoint("statsd-1", 8125);
+ *   statsd.addEndpoint("statsd-2", 8125);
+ * </pre>
+ *
+ * <p>Metrics recorded while there are no servers are discarded. If the template registers an
+ * MBean, each server's client registers its own, named after the server, and if it spills to
+ * a journal, each server's client spills to a file of its own, named after the server.</p>
+ */
+public final class ShardedStatsDClient extends ConvenienceMethodProvidingStatsDClient {
+
+    private final NonBlockingStatsDClientBuilder template;
+    private final Object endpointsLock = new Object();
+    private volatile ConsistentHashRing<NonBlockingStatsDClient> ring = new ConsistentHashRing<NonBlockingStatsDClient>();
+
+    /**
+     * @param template
+     *     the configuration for the client of each server, whose host name and port are ignored
+     */
+    public ShardedStatsDClient(NonBlockingStatsDClientBuilder template) {
+        if (template.transport != null || template.sender != null) {
+            throw new IllegalArgumentException("a sharded client cannot share one transport between its servers");
+        }
+        this.template = template.copy();
+    }
+
+    /**
+     * Starts sending a share of the aspects to the given server.
+     *
+     * @return false if the server was already in use
+     * @throws StatsDClientException
+     *     if the client for the server could not be started
+     */
+    public boolean addEndpoint(String hostname, int port) throws StatsDClientException {
+        final String name = endpointName(hostname, port);
+        synchronized (endpointsLock) {
+            if (ring.nodes().containsKey(name)) {
+                return false;
+            }
+            final NonBlockingStatsDClientBuilder builder = template.copy().hostname(hostname).port(port);
+            if (template.mbeanName != null) {
+                builder.registerMBean(template.mbeanName + "@" + name);
+            }
+            if (template.spillFile != null) {
+                builder.spillJournal(new File(template.spillFile.getPath() + "@" + name.replace(':', '_')), template.spillMaxBytes);
+            }
+            final NonBlockingStatsDClient client = builder.build();
+            ring = ring.with(name, client);
+            return true;
+        }
+    }
+
+    /**
+     * Stops sending metrics to the given server, once everything already queued for it has been sent,
+     * and spreads its aspects across the remaining servers. Metrics which threads racing the removal
+     * still route to the server are discarded, and counted as dropped by its client.
+     *
+     * @return false if the server was not in use
+     */
+    public boolean removeEndpoint(String hostname, int port) {
+        final String name = endpointName(hostname, port);
+        final NonBlockingStatsDClient removed;
+        synchronized (endpointsLock) {
+            removed = ring.nodes().get(name);
+            if (removed == null) {
+                return false;
+            }
+            ring = ring.without(name);
+        }
+        removed.retire();
+        return true;
+    }
+
+    /**
+     * @return the servers in use, as host:port
+     */
+    public List<String> getEndpoints() {
+        return new ArrayList<String>(ring.nodes().keySet());
+    }
+
+    /**
+     * @return the total number of messages discarded by the clients of the servers in use
+     */
+    public long getDroppedMessageCount() {
+        long dropped = 0L;
+        for (NonBlockingStatsDClient client : ring.nodes().values()) {
+            dropped += client.getDroppedMessageCount();
+        }
+        return dropped;
+    }
+
+    /**
+     * Cleanly shut down the client of every server.
+     */
+    @Override
+    public void stop() {
+        final List<NonBlockingStatsDClient> clients;
+        synchronized (endpointsLock) {
+            clients = new ArrayList<NonBlockingStatsDClient>(ring.nodes().values());
+            ring = new ConsistentHashRing<NonBlockingStatsDClient>();
+        }
+        for (NonBlockingStatsDClient client : clients) {
+            client.stop();
+        }
+    }
+
+    @Override
+    public void count(String aspect, long delta, double sampleRate) {
+        final NonBlockingStatsDClient client = ring.nodeFor(aspect);
+        if (client != null) {
+            client.count(aspect, delta, sampleRate);
+        }
+    }
+
+    @Override
+    public void recordGaugeValue(String aspect, long value) {
+        final NonBlockingStatsDClient client = ring.nodeFor(aspect);
+        if (client != null) {
+            client.recordGaugeValue(aspect, value);
+        }
+    }
+
+    @Override
+    public void recordGaugeValue(String aspect, double value) {
+        final NonBlockingStatsDClient client = ring.nodeFor(aspect);
+        if (client != null) {
+            client.recordGaugeValue(aspect, value);
+        }
+    }
+
+    @Override
+    public void recordGaugeDelta(String aspect, long delta) {
+        final NonBlockingStatsDClient client = ring.nodeFor(aspect);
+        if (client != null) {
+            client.recordGaugeDelta(aspect, delta);
+        }
+    }
+
+    @Override
+    public void recordGaugeDelta(String aspect, double delta) {
+        final NonBlockingStatsDClient client = ring.nodeFor(aspect);
+        if (client != null) {
+            client.recordGaugeDelta(aspect, delta);
+        }
+    }
+
+    @Override
+    public void recordSetEvent(String aspect, String eventName) {
+        final NonBlockingStatsDClient client = ring.nodeFor(aspect);
+        if (client != null) {
+            client.recordSetEvent(aspect, eventName);
+        }
+    }
+
+    @Override
+    public void recordExecutionTime(String aspect, long timeInMs, double sampleRate) {
+        final NonBlockingStatsDClient client = ring.nodeFor(aspect);
+        if (client != null) {
+            client.recordExecutionTime(aspect, timeInMs, sampleRate);
+        }
+    }
+
+    @Override
+    public void recordExecutionTimeNanos(String aspect, long timeInNanos, double sampleRate) {
+        final NonBlockingStatsDClient client = ring.nodeFor(aspect);
+        if (client != null) {
+            client.recordExecutionTimeNanos(aspect, timeInNanos, sampleRate);
+        }
+    }
+
+    private static String endpointName(String hostname, int port) {
+        return hostname + ":" + port;
+    }
+}
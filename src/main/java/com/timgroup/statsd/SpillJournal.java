@@ -0,0 +1,198 @@
+package com.timgroup.statsd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps batches which a {@link NonBlockingSender} could not write, in a ring of bounded size
+ * in a memory-mapped file, so that they can be written in order once the server is back.
+ *
+ * <p>Batches are copied into the mapping, and left to the operating system to write to disk,
+ * so spilling costs no more than a copy and is never forced to disk on the way. Once the ring
+ * is full, the oldest batches are discarded to make room. Batches still in the file when the
+ * sender stops are kept, and replayed by the next sender to use the file, as long as the
+ * operating system has not crashed meanwhile.</p>
+ *
+ * <p>A journal belongs to a single sender, and is only used from its thread.</p>
+ */
+public final class SpillJournal {
+
+    private static final long MAGIC = 0x5374617473444a31L; // "StatsDJ1"
+    private static final int READ_POSITION_OFFSET = 8;
+    private static final int WRITE_POSITION_OFFSET = 16;
+    private static final int HEADER_BYTES = 24;
+    private static final int LENGTH_BYTES = 4;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final ByteBuffer length = ByteBuffer.allocate(LENGTH_BYTES);
+    private ByteBuffer batch = ByteBuffer.allocate(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES);
+    private long readPosition;
+    private long writePosition;
+
+    /**
+     * Opens the journal in the given file, creating it if need be, and picks up any batches
+     * left in it by an earlier sender with the same maximum size.
+     *
+     * @param path
+     *     the file to keep the batches in
+     * @param maxBytes
+     *     the most bytes of batches to keep, each taking four bytes more than its length
+     * @throws IOException
+     *     if the file cannot be opened or mapped
+     */
+    public SpillJournal(File path, int maxBytes) throws IOException {
+        if (maxBytes <= LENGTH_BYTES || maxBytes > Integer.MAX_VALUE - HEADER_BYTES) {
+            throw new IllegalArgumentException("maxBytes is out of range: " + maxBytes);
+        }
+        this.capacity = maxBytes;
+        this.file = new RandomAccessFile(path, "rw");
+        try {
+            final boolean resized = file.length() != HEADER_BYTES + maxBytes;
+            if (resized) {
+                file.setLength(HEADER_BYTES + maxBytes);
+            }
+            this.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, HEADER_BYTES + maxBytes);
+            readPosition = map.getLong(READ_POSITION_OFFSET);
+            writePosition = map.getLong(WRITE_POSITION_OFFSET);
+            if (resized || map.getLong(0) != MAGIC
+                    || readPosition < 0L || writePosition < readPosition || writePosition - readPosition > capacity) {
+                map.putLong(0, MAGIC);
+                reset();
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    boolean isEmpty() {
+        return writePosition == readPosition;
+    }
+
+    /**
+     * @return the number of bytes the journal holds
+     */
+    long size() {
+        return writePosition - readPosition;
+    }
+
+    /**
+     * @return whether a batch of the given length could be kept at all
+     */
+    boolean fits(int bytes) {
+        return LENGTH_BYTES + (long) bytes <= capacity;
+    }
+
+    /**
+     * Appends the remaining bytes of the given buffer, consuming them, after discarding as many
+     * of the oldest batches as it takes to make room. The batch must {@link #fits fit}.
+     *
+     * @return the number of batches discarded
+     */
+    int append(ByteBuffer data) {
+        final int bytes = data.remaining();
+        int discarded = 0;
+        while (capacity - (writePosition - readPosition) < LENGTH_BYTES + bytes) {
+            readPosition += LENGTH_BYTES + readLength();
+            discarded++;
+        }
+        length.clear();
+        length.putInt(0, bytes);
+        write(writePosition, length);
+        write(writePosition + LENGTH_BYTES, data);
+        writePosition += LENGTH_BYTES + bytes;
+        map.putLong(READ_POSITION_OFFSET, readPosition);
+        map.putLong(WRITE_POSITION_OFFSET, writePosition);
+        return discarded;
+    }
+
+    /**
+     * @return the oldest batch, which stays in the journal until {@link #remove()}, or null if
+     *     there is none; the buffer is reused by the next call
+     */
+    ByteBuffer peek() {
+        if (isEmpty()) {
+            return null;
+        }
+        final int bytes = readLength();
+        if (bytes < 0 || LENGTH_BYTES + (long) bytes > writePosition - readPosition) {
+            reset(); // torn by a crash; nothing in it can be trusted
+            return null;
+        }
+        if (batch.capacity() < bytes) {
+            batch = ByteBuffer.allocate(bytes);
+        }
+        batch.clear();
+        batch.limit(bytes);
+        read(readPosition + LENGTH_BYTES, batch);
+        batch.flip();
+        return batch;
+    }
+
+    /**
+     * Removes the oldest batch.
+     */
+    void remove() {
+        if (!isEmpty()) {
+            readPosition += LENGTH_BYTES + readLength();
+            map.putLong(READ_POSITION_OFFSET, readPosition);
+        }
+    }
+
+    /**
+     * Asks the operating system to write the journal to disk, and closes the file.
+     */
+    void close() throws IOException {
+        try {
+            map.force();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void reset() {
+        readPosition = 0L;
+        writePosition = 0L;
+        map.putLong(READ_POSITION_OFFSET, 0L);
+        map.putLong(WRITE_POSITION_OFFSET, 0L);
+    }
+
+    private int readLength() {
+        length.clear();
+        read(readPosition, length);
+        return length.getInt(0);
+    }
+
+    private void write(long position, ByteBuffer source) {
+        final int offset = (int) (position % capacity);
+        final int limit = source.limit();
+        source.limit(source.position() + Math.min(source.remaining(), capacity - offset));
+        map.position(HEADER_BYTES + offset);
+        map.put(source);
+        source.limit(limit);
+        if (source.hasRemaining()) {
+            map.position(HEADER_BYTES);
+            map.put(source);
+        }
+    }
+
+    private void read(long position, ByteBuffer target) {
+        final int offset = (int) (position % capacity);
+        final int first = Math.min(target.remaining(), capacity - offset);
+        map.limit(HEADER_BYTES + offset + first);
+        map.position(HEADER_BYTES + offset);
+        target.put(map);
+        if (target.hasRemaining()) {
+            map.limit(HEADER_BYTES + target.remaining());
+            map.position(HEADER_BYTES);
+            target.put(map);
+        }
+        map.limit(map.capacity());
+    }
+}
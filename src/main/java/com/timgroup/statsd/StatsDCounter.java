@@ -0,0 +1,60 @@
+package com.timgroup.statsd;
+
+/**
+ * A handle on a single counter of a {@link NonBlockingStatsDClient}, obtained from
+ * {@link NonBlockingStatsDClient#counter(String)}.
+ *
+ * <p>The counter's key, prefix included, is encoded once when the handle is created, so
+ * that adjusting it only costs the formatting of the delta. Handles are thread-safe, and
+ * are best created once and kept.</p>
+ */
+public final class StatsDCounter {
+
+    private final NonBlockingStatsDClient client;
+    private final String aspect;
+    private final byte[] key;
+    private final TagSet tags;
+
+    StatsDCounter(NonBlockingStatsDClient client, String aspect, byte[] key, TagSet tags) {
+        this.client = client;
+        this.aspect = aspect;
+        this.key = key;
+        this.tags = tags;
+    }
+
+    /**
+     * Adjusts the counter by a given delta.
+     *
+     * @param delta
+     *     the amount to adjust the counter by
+     */
+    public void count(long delta) {
+        client.count(aspect, key, tags, delta, 1.0);
+    }
+
+    /**
+     * Adjusts the counter by a given delta, at the given sampling rate.
+     *
+     * @param delta
+     *     the amount to adjust the counter by
+     * @param sampleRate
+     *     the sampling rate being employed
+     */
+    public void count(long delta, double sampleRate) {
+        client.count(aspect, key, tags, delta, sampleRate);
+    }
+
+    /**
+     * Adds one to the counter.
+     */
+    public void increment() {
+        count(1L);
+    }
+
+    /**
+     * Subtracts one from the counter.
+     */
+    public void decrement() {
+        count(-1L);
+    }
+}
@@ -0,0 +1,64 @@
+package com.timgroup.statsd;
+
+/**
+ * A handle on a single gauge of a {@link NonBlockingStatsDClient}, obtained from
+ * {@link NonBlockingStatsDClient#gauge(String)}.
+ *
+ * <p>The gauge's key, prefix included, is encoded once when the handle is created, so
+ * that recording a reading only costs the formatting of the value. Handles are thread-safe,
+ * and are best created once and kept.</p>
+ */
+public final class StatsDGauge {
+
+    private final NonBlockingStatsDClient client;
+    private final String aspect;
+    private final byte[] key;
+    private final TagSet tags;
+
+    StatsDGauge(NonBlockingStatsDClient client, String aspect, byte[] key, TagSet tags) {
+        this.client = client;
+        this.aspect = aspect;
+        this.key = key;
+        this.tags = tags;
+    }
+
+    /**
+     * Records the latest fixed value of the gauge.
+     *
+     * @param value
+     *     the new reading of the gauge
+     */
+    public void recordValue(long value) {
+        client.recordGaugeValue(aspect, key, tags, value);
+    }
+
+    /**
+     * Records the latest fixed value of the gauge.
+     *
+     * @param value
+     *     the new reading of the gauge
+     */
+    public void recordValue(double value) {
+        client.recordGaugeValue(aspect, key, tags, value);
+    }
+
+    /**
+     * Adjusts the gauge by a given delta.
+     *
+     * @param delta
+     *     the amount to adjust the gauge by
+     */
+    public void recordDelta(long delta) {
+        client.recordGaugeDelta(aspect, key, tags, delta);
+    }
+
+    /**
+     * Adjusts the gauge by a given delta.
+     *
+     * @param delta
+     *     the amount to adjust the gauge by
+     */
+    public void recordDelta(double delta) {
+        client.recordGaugeDelta(aspect, key, tags, delta);
+    }
+}
@@ -0,0 +1,141 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.Callable;
+
+/**
+ * A handle on a single timed operation of a {@link NonBlockingStatsDClient}, obtained from
+ * {@link NonBlockingStatsDClient#timer(String)}.
+ *
+ * <p>The operation's key, prefix included, is encoded once when the handle is created, so
+ * that recording a time only costs the formatting of the time. Handles are thread-safe, and
+ * are best created once and kept.</p>
+ *
+ * <p>A handle doubles as a stopwatch which keeps no state of its own, so that it can time any
+ * number of operations at once without allocating:</p>
+ *
+ * <pre>
+ * final long start = timer.start();
+ * ...
+ * timer.stop(start);
+ * </pre>
+ */
+public final class StatsDTimer {
+
+    private final NonBlockingStatsDClient client;
+    private final String aspect;
+    private final byte[] key;
+    private final TagSet tags;
+
+    StatsDTimer(NonBlockingStatsDClient client, String aspect, byte[] key, TagSet tags) {
+        this.client = client;
+        this.aspect = aspect;
+        this.key = key;
+        this.tags = tags;
+    }
+
+    /**
+     * Records an execution time of the operation.
+     *
+     * @param timeInMs
+     *     the time in milliseconds
+     */
+    public void recordExecutionTime(long timeInMs) {
+        client.recordExecutionTime(aspect, key, tags, timeInMs, 1.0);
+    }
+
+    /**
+     * Records an execution time of the operation, at the given sampling rate.
+     *
+     * @param timeInMs
+     *     the time in milliseconds
+     * @param sampleRate
+     *     the sampling rate being employed
+     */
+    public void recordExecutionTime(long timeInMs, double sampleRate) {
+        client.recordExecutionTime(aspect, key, tags, timeInMs, sampleRate);
+    }
+
+    /**
+     * Records the time elapsed since the given start time, as measured by
+     * {@link System#currentTimeMillis()}.
+     *
+     * @param systemTimeMillisAtStart
+     *     the time at which the operation started
+     */
+    public void recordExecutionTimeToNow(long systemTimeMillisAtStart) {
+        recordExecutionTime(Math.max(0L, System.currentTimeMillis() - systemTimeMillisAtStart));
+    }
+
+    /**
+     * Records an execution time of the operation in nanoseconds, sent as a fractional number
+     * of milliseconds.
+     *
+     * @param timeInNanos
+     *     the time in nanoseconds
+     */
+    public void recordExecutionTimeNanos(long timeInNanos) {
+        client.recordExecutionTimeNanos(aspect, key, tags, timeInNanos, 1.0);
+    }
+
+    /**
+     * Records an execution time of the operation in nanoseconds, at the given sampling rate.
+     *
+     * @param timeInNanos
+     *     the time in nanoseconds
+     * @param sampleRate
+     *     the sampling rate being employed
+     */
+    public void recordExecutionTimeNanos(long timeInNanos, double sampleRate) {
+        client.recordExecutionTimeNanos(aspect, key, tags, timeInNanos, sampleRate);
+    }
+
+    /**
+     * @return the start time of an execution, to be passed to {@link #stop(long)} when it ends
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since the given start time, as measured by {@link System#nanoTime()}.
+     *
+     * @param startNanos
+     *     the time returned by {@link #start()} when the operation started
+     */
+    public void stop(long startNanos) {
+        recordExecutionTimeNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Runs the given operation, and records how long it took, whether or not it completed normally.
+     *
+     * @param operation
+     *     the operation to run and time
+     */
+    public void time(Runnable operation) {
+        final long start = start();
+        try {
+            operation.run();
+        } finally {
+            stop(start);
+        }
+    }
+
+    /**
+     * Calls the given operation, and records how long it took, whether or not it completed normally.
+     *
+     * @param operation
+     *     the operation to call and time
+     * @return the result of the operation
+     * @throws Exception
+     *     whatever the operation throws
+     */
+    public <T> T time(Callable<T> operation) throws Exception {
+        final long start = start();
+        try {
+            return operation.call();
+        } finally {
+            stop(start);
+        }
+    }
+}
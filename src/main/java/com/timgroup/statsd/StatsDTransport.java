@@ -0,0 +1,30 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries batches of StatsD messages to a server, on behalf of a {@link NonBlockingSender}.
+ *
+ * <p>Every method is called from the sender's own thread, so implementations need not be
+ * thread-safe, but they should avoid blocking for long, since messages queue up meanwhile.</p>
+ */
+public interface StatsDTransport {
+
+    /**
+     * Prepares to write, for example by connecting a socket. Called once, before any writes.
+     */
+    void open() throws IOException;
+
+    /**
+     * Writes a batch of one or more messages, separated by newlines, adding any framing the
+     * transport requires. The buffer is reused as soon as this method returns.
+     */
+    void write(ByteBuffer batch) throws IOException;
+
+    /**
+     * Writes anything still outstanding, as far as possible, and releases the transport's resources.
+     */
+    void close() throws IOException;
+
+}
@@ -0,0 +1,226 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends batches of messages to a StatsD server over a persistent stream connection, each
+ * message terminated by a newline.
+ *
+ * <p>The connection is made and written to without blocking. While it is being made, or
+ * when the server cannot keep up, batches wait in a buffer of bounded size; a batch that
+ * does not fit is dropped whole, so the stream never carries a partial message. When the
+ * connection fails, it is made again after a delay which doubles with each consecutive
+ * failure.</p>
+ */
+abstract class StreamTransport implements StatsDTransport {
+
+    private static final long MIN_RECONNECT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50L);
+    private static final long MAX_RECONNECT_DELAY_NANOS = TimeUnit.SECONDS.toNanos(10L);
+    private static final long CLOSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1L);
+    private static final byte MESSAGE_TERMINATOR = '\n';
+
+    private final int maxPendingBytes;
+    private final ByteBuffer terminator = ByteBuffer.wrap(new byte[] { MESSAGE_TERMINATOR });
+    private final ByteBuffer[] gathered = new ByteBuffer[2];
+
+    private ByteBuffer pending;
+    private boolean pendingStartsMidMessage;
+    private SocketChannel channel;
+    private long reconnectDelayNanos = MIN_RECONNECT_DELAY_NANOS;
+    private long reconnectAt;
+
+    StreamTransport(int maxPendingBytes) {
+        if (maxPendingBytes <= 0) {
+            throw new IllegalArgumentException("maxPendingBytes must be positive: " + maxPendingBytes);
+        }
+        this.maxPendingBytes = maxPendingBytes;
+        this.pending = ByteBuffer.allocate(maxPendingBytes);
+    }
+
+    /**
+     * @return a new, unconnected channel
+     */
+    abstract SocketChannel openChannel() throws IOException;
+
+    /**
+     * @return the address of the server, looked up afresh for each connection
+     * @throws IOException
+     *     if the address cannot be determined, which is reported rather than retried
+     */
+    abstract SocketAddress serverAddress() throws IOException;
+
+    /**
+     * Starts connecting. Failing to connect is not an error at this point, since the
+     * server may yet come up, but failing to determine its address is.
+     */
+    @Override
+    public void open() throws IOException {
+        final SocketAddress address = serverAddress();
+        try {
+            connect(address);
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer batch) throws IOException {
+        boolean started = false;
+        try {
+            if (isConnected() && drainPending()) {
+                started = true;
+                gathered[0] = batch;
+                gathered[1] = terminator;
+                terminator.clear();
+                channel.write(gathered);
+                if (batch.hasRemaining() || terminator.hasRemaining()) {
+                    keepRemainder(batch);
+                }
+                return;
+            }
+        } catch (IOException e) {
+            disconnect();
+            if (!started) {
+                keepPending(batch);
+            }
+            throw e;
+        }
+        if (!keepPending(batch)) {
+            throw new IOException("Dropped a batch of " + batch.remaining() + " bytes while waiting to send to "
+                                  + describeServer());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        final long deadline = System.nanoTime() + CLOSE_TIMEOUT_NANOS;
+        try {
+            while (pending.position() > 0 && System.nanoTime() - deadline < 0L) {
+                if (isConnected() && drainPending()) {
+                    break;
+                }
+                Thread.sleep(1L);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private boolean isConnected() throws IOException {
+        if (channel == null) {
+            if (System.nanoTime() - reconnectAt < 0L) {
+                return false;
+            }
+            connect(serverAddress());
+        }
+        if (channel.isConnectionPending()) {
+            if (!channel.finishConnect()) {
+                return false;
+            }
+            reconnectDelayNanos = MIN_RECONNECT_DELAY_NANOS;
+        }
+        return channel.isConnected();
+    }
+
+    /**
+     * @return a description of the server for error messages
+     */
+    abstract String describeServer();
+
+    private void connect(SocketAddress address) throws IOException {
+        channel = openChannel();
+        channel.configureBlocking(false);
+        if (channel.connect(address)) {
+            reconnectDelayNanos = MIN_RECONNECT_DELAY_NANOS;
+        }
+    }
+
+    private void disconnect() {
+        if (pendingStartsMidMessage) {
+            discardPartialMessage();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the connection has already failed
+            }
+            channel = null;
+        }
+        reconnectAt = System.nanoTime() + reconnectDelayNanos;
+        reconnectDelayNanos = Math.min(reconnectDelayNanos * 2, MAX_RECONNECT_DELAY_NANOS);
+    }
+
+    /**
+     * @return whether everything that was waiting has now been written
+     */
+    private boolean drainPending() throws IOException {
+        if (pending.position() == 0) {
+            return true;
+        }
+        pending.flip();
+        try {
+            channel.write(pending);
+            if (pending.position() > 0) {
+                pendingStartsMidMessage = pending.get(pending.position() - 1) != MESSAGE_TERMINATOR;
+            }
+        } finally {
+            pending.compact();
+        }
+        if (pending.position() > 0) {
+            return false;
+        }
+        if (pending.capacity() > maxPendingBytes) {
+            pending = ByteBuffer.allocate(maxPendingBytes);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the rest of a message which was partly written to a connection that has since failed,
+     * since the server will have discarded the part it received.
+     */
+    private void discardPartialMessage() {
+        pending.flip();
+        while (pending.hasRemaining() && pending.get() != MESSAGE_TERMINATOR) {
+            continue;
+        }
+        pending.compact();
+        pendingStartsMidMessage = false;
+    }
+
+    private boolean keepPending(ByteBuffer batch) {
+        if (batch.remaining() + 1 > pending.remaining()) {
+            return false;
+        }
+        pending.put(batch).put(MESSAGE_TERMINATOR);
+        return true;
+    }
+
+    /**
+     * Keeps the unwritten end of a partly written batch. It must follow what has been written,
+     * so the buffer grows beyond its usual bound if need be.
+     */
+    private void keepRemainder(ByteBuffer batch) {
+        pendingStartsMidMessage = batch.hasRemaining()
+                ? batch.position() > 0 && batch.get(batch.position() - 1) != MESSAGE_TERMINATOR
+                : true;
+        final int required = batch.remaining() + terminator.remaining();
+        if (required > pending.remaining()) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(maxPendingBytes, pending.position() + required));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        pending.put(batch).put(terminator);
+    }
+}
@@ -0,0 +1,79 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sum which many threads can add to at once with little contention, in the manner of
+ * {@code java.util.concurrent.atomic.LongAdder}: each thread updates one of several
+ * cells, chosen by its id and spread over separate cache lines, and the cells are only
+ * combined when the sum is read.
+ *
+ * <p>Whole and fractional amounts are kept apart so that whole sums stay exact.</p>
+ */
+final class StripedAccumulator {
+
+    private static final int STRIPES = stripeCount();
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray longCells = new AtomicLongArray(STRIPES * PADDING);
+    private final AtomicLongArray doubleCells = new AtomicLongArray(STRIPES * PADDING);
+
+    void add(long amount) {
+        longCells.getAndAdd(cellIndex(), amount);
+    }
+
+    void add(double amount) {
+        final int index = cellIndex();
+        while (true) {
+            final long current = doubleCells.get(index);
+            final long updated = Double.doubleToRawLongBits(Double.longBitsToDouble(current) + amount);
+            if (doubleCells.compareAndSet(index, current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the sum of whole amounts added since {@link #drainLong()} was last called, leaving it in place
+     */
+    long sumLong() {
+        long sum = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += longCells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the sum of whole amounts added since this method was last called
+     */
+    long drainLong() {
+        long sum = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += longCells.getAndSet(i * PADDING, 0L);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the sum of fractional amounts added since this method was last called
+     */
+    double drainDouble() {
+        double sum = 0.0d;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += Double.longBitsToDouble(doubleCells.getAndSet(i * PADDING, 0L));
+        }
+        return sum;
+    }
+
+    private static int cellIndex() {
+        final long id = Thread.currentThread().getId();
+        return ((int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1)) * PADDING;
+    }
+
+    private static int stripeCount() {
+        final int processors = Math.min(64, Runtime.getRuntime().availableProcessors());
+        final int highestOneBit = Integer.highestOneBit(Math.max(1, processors));
+        return (highestOneBit == processors) ? processors : highestOneBit << 1;
+    }
+}
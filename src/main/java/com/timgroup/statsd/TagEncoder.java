@@ -0,0 +1,48 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encodes the DogStatsD tags of a client: its constant tags once, when it is built, and
+ * each combination of tags given with a metric once, when first seen, caching the result.
+ */
+final class TagEncoder {
+
+    private static final int MAX_CACHED_TAG_SETS = 4096;
+
+    private final String[] constantTags;
+    private final byte[] constantSuffix;
+    private final ConcurrentMap<TagSet, TagSet> encoded = new ConcurrentHashMap<TagSet, TagSet>();
+
+    TagEncoder(String[] constantTags) {
+        this.constantTags = constantTags.clone();
+        this.constantSuffix = TagSet.suffixFor(this.constantTags);
+    }
+
+    /**
+     * @return the suffix for a metric without tags of its own, empty if there are no constant tags
+     */
+    byte[] constantSuffix() {
+        return constantSuffix;
+    }
+
+    /**
+     * @return the tag set for the given tags, or null if there are none
+     */
+    TagSet tagSetFor(String[] tags) {
+        if (tags == null || tags.length == 0) {
+            return null;
+        }
+        final TagSet cached = encoded.get(new TagSet(tags));
+        if (cached != null) {
+            return cached;
+        }
+        final TagSet created = TagSet.encode(constantTags, tags);
+        if (encoded.size() >= MAX_CACHED_TAG_SETS) {
+            return created;
+        }
+        final TagSet raced = encoded.putIfAbsent(created, created);
+        return (raced == null) ? created : raced;
+    }
+}
@@ -0,0 +1,78 @@
+package com.timgroup.statsd;
+
+import java.util.Arrays;
+
+/**
+ * A set of DogStatsD tags given with a metric, along with the suffix which carries them,
+ * and the client's constant tags, at the end of each message: {@code |#tag1,tag2:value}.
+ *
+ * <p>Instances obtained from {@link TagEncoder#tagSetFor} are shared by every call with
+ * the same tags, so their suffix is only encoded once.</p>
+ */
+final class TagSet {
+
+    private static final byte[] TAGS_PREFIX = MessageEncoder.ascii("|#");
+
+    private final String[] tags;
+    private final int hash;
+    final byte[] suffix;
+
+    /**
+     * A set to look the tags up by, without a suffix.
+     */
+    TagSet(String[] tags) {
+        this(tags, null);
+    }
+
+    private TagSet(String[] tags, byte[] suffix) {
+        this.tags = tags;
+        this.hash = Arrays.hashCode(tags);
+        this.suffix = suffix;
+    }
+
+    /**
+     * @return a set of the given tags with its suffix encoded, after the given constant tags
+     */
+    static TagSet encode(String[] constantTags, String[] tags) {
+        final String[] owned = tags.clone();
+        final StringBuilder joined = new StringBuilder();
+        for (String tag : constantTags) {
+            joined.append(',').append(tag);
+        }
+        for (String tag : owned) {
+            joined.append(',').append(tag);
+        }
+        return new TagSet(owned, suffixFor(joined));
+    }
+
+    /**
+     * @return the suffix carrying the given tags, or an empty one if there are none
+     */
+    static byte[] suffixFor(String[] tags) {
+        final StringBuilder joined = new StringBuilder();
+        for (String tag : tags) {
+            joined.append(',').append(tag);
+        }
+        return suffixFor(joined);
+    }
+
+    private static byte[] suffixFor(StringBuilder joinedWithLeadingComma) {
+        if (joinedWithLeadingComma.length() == 0) {
+            return new byte[0];
+        }
+        final byte[] tags = MessageEncoder.utf8(joinedWithLeadingComma.substring(1));
+        final byte[] suffix = Arrays.copyOf(TAGS_PREFIX, TAGS_PREFIX.length + tags.length);
+        System.arraycopy(tags, 0, suffix, TAGS_PREFIX.length, tags.length);
+        return suffix;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof TagSet && Arrays.equals(tags, ((TagSet) other).tags);
+    }
+}
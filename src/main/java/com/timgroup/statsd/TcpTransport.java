@@ -0,0 +1,67 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends batches of messages to a StatsD server over a persistent TCP connection, each
+ * message terminated by a newline.
+ *
+ * <p>The connection is made and written to without blocking. While it is being made, or
+ * when the server cannot keep up, batches wait in a buffer of bounded size; a batch that
+ * does not fit is dropped whole, so the stream never carries a partial message. When the
+ * connection fails, it is made again after a delay which doubles with each consecutive
+ * failure.</p>
+ */
+public final class TcpTransport extends StreamTransport {
+
+    /** The number of bytes which may wait for the connection unless otherwise configured. */
+    public static final int DEFAULT_MAX_PENDING_BYTES = 64 * 1024;
+
+    private final String hostname;
+    private final int port;
+
+    /**
+     * @param hostname
+     *     the host name of the targeted StatsD server
+     * @param port
+     *     the port of the targeted StatsD server
+     */
+    public TcpTransport(String hostname, int port) {
+        this(hostname, port, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * @param maxPendingBytes
+     *     the most bytes which may wait for the connection to be made or to drain
+     */
+    public TcpTransport(String hostname, int port, int maxPendingBytes) {
+        super(maxPendingBytes);
+        this.hostname = hostname;
+        this.port = port;
+    }
+
+    @Override
+    SocketChannel openChannel() throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        channel.socket().setTcpNoDelay(true);
+        return channel;
+    }
+
+    @Override
+    SocketAddress serverAddress() throws IOException {
+        final InetSocketAddress address = new InetSocketAddress(hostname, port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(hostname);
+        }
+        return address;
+    }
+
+    @Override
+    String describeServer() {
+        return hostname + ":" + port + " over TCP";
+    }
+}
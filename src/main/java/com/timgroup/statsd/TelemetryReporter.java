@@ -0,0 +1,95 @@
+package com.timgroup.statsd;
+
+/**
+ * Sends a client's {@link SenderTelemetry} as metrics of its own, under a prefix of its
+ * own, at the end of each aggregation interval.
+ *
+ * <p>Counts are sent as counters of what happened during the interval, and left out when
+ * nothing did. The queue size is sent as a gauge, as are the mean and longest write times
+ * in milliseconds, for intervals in which something was written, and the client's load
+ * shedding factor, when it sheds load.</p>
+ */
+final class TelemetryReporter implements Aggregator {
+
+    private static final byte[] COUNTER_TYPE = MessageEncoder.ascii("|c");
+    private static final byte[] GAUGE_TYPE = MessageEncoder.ascii("|g");
+    private static final double NANOS_PER_MILLI = 1000000.0d;
+
+    private final SenderTelemetry telemetry;
+    private final byte[] prefix;
+    private final LoadShedder loadShedder;
+
+    private long queuedMessages;
+    private long droppedMessages;
+    private long sentPackets;
+    private long sentBytes;
+    private long writeErrors;
+    private long errors;
+    private long sendNanos;
+    private long spilledPackets;
+    private long replayedPackets;
+    private long discardedSpillPackets;
+
+    /**
+     * @param prefix
+     *     the prefix of every metric, without a trailing dot
+     * @param loadShedder
+     *     the client's load shedder, or null if it does not shed load
+     */
+    TelemetryReporter(SenderTelemetry telemetry, String prefix, LoadShedder loadShedder) {
+        this.telemetry = telemetry;
+        this.prefix = MessageEncoder.utf8(prefix + ".");
+        this.loadShedder = loadShedder;
+    }
+
+    @Override
+    public void flush(MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        final long queuedTotal = telemetry.getQueuedMessageCount();
+        final long droppedTotal = telemetry.getDroppedMessageCount();
+        final long packetsTotal = telemetry.getSentPacketCount();
+        final long bytesTotal = telemetry.getSentByteCount();
+        final long writeErrorsTotal = telemetry.getWriteErrorCount();
+        final long errorsTotal = telemetry.getErrorCount();
+        final long sendNanosTotal = telemetry.getTotalSendNanos();
+        final long maxSendNanos = telemetry.drainIntervalMaxSendNanos();
+        final long spilledTotal = telemetry.getSpilledPacketCount();
+        final long replayedTotal = telemetry.getReplayedPacketCount();
+        final long discardedSpillTotal = telemetry.getDiscardedSpillPacketCount();
+
+        counter(encoder, out, "messages.queued", queuedTotal - queuedMessages);
+        counter(encoder, out, "messages.dropped", droppedTotal - droppedMessages);
+        counter(encoder, out, "packets.sent", packetsTotal - sentPackets);
+        counter(encoder, out, "bytes.sent", bytesTotal - sentBytes);
+        counter(encoder, out, "errors.write", writeErrorsTotal - writeErrors);
+        counter(encoder, out, "errors.total", errorsTotal - errors);
+        counter(encoder, out, "packets.spilled", spilledTotal - spilledPackets);
+        counter(encoder, out, "packets.replayed", replayedTotal - replayedPackets);
+        counter(encoder, out, "packets.spill_discarded", discardedSpillTotal - discardedSpillPackets);
+        encoder.reset().put(prefix).putUtf8("queue.size:").putLong(telemetry.getQueueSize()).put(GAUGE_TYPE).writeTo(out);
+        if (loadShedder != null) {
+            encoder.reset().put(prefix).putUtf8("shedding.factor:").putDouble(loadShedder.factor()).put(GAUGE_TYPE).writeTo(out);
+        }
+        if (packetsTotal > sentPackets) {
+            final double meanNanos = (double) (sendNanosTotal - sendNanos) / (packetsTotal - sentPackets);
+            encoder.reset().put(prefix).putUtf8("send.time.mean:").putDouble(meanNanos / NANOS_PER_MILLI).put(GAUGE_TYPE).writeTo(out);
+            encoder.reset().put(prefix).putUtf8("send.time.max:").putDouble(maxSendNanos / NANOS_PER_MILLI).put(GAUGE_TYPE).writeTo(out);
+        }
+
+        queuedMessages = queuedTotal;
+        droppedMessages = droppedTotal;
+        sentPackets = packetsTotal;
+        sentBytes = bytesTotal;
+        writeErrors = writeErrorsTotal;
+        errors = errorsTotal;
+        sendNanos = sendNanosTotal;
+        spilledPackets = spilledTotal;
+        replayedPackets = replayedTotal;
+        discardedSpillPackets = discardedSpillTotal;
+    }
+
+    private void counter(MessageEncoder encoder, MessageRingBuffer.Handler out, String name, long delta) {
+        if (delta != 0L) {
+            encoder.reset().put(prefix).putUtf8(name).put((byte) ':').putLong(delta).put(COUNTER_TYPE).writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.timgroup.statsd;
+
+/**
+ * Describes whether, and how, a StatsD client summarises execution times locally
+ * instead of sending every one of them to the server.
+ *
+ * <p>When timers are aggregated, each aspect records its times into a histogram of
+ * fixed size, so memory use does not grow with the rate of recording. Values are
+ * kept to within about 3% of their true value.</p>
+ */
+public enum TimerAggregation {
+
+    /**
+     * Send every execution time to the server as it is recorded.
+     */
+    NONE,
+
+    /**
+     * Every aggregation interval, send precomputed gauges for each aspect:
+     * {@code <aspect>.count}, {@code .min}, {@code .max}, {@code .mean}, {@code .p50},
+     * {@code .p90}, {@code .p99} and {@code .p999}.
+     */
+    GAUGES,
+
+    /**
+     * Every aggregation interval, send a bounded number of representative timer samples
+     * for each aspect, spread across its distribution and including its minimum and maximum,
+     * with a sample rate which makes the server count the true number of executions.
+     */
+    SAMPLES
+
+}
@@ -0,0 +1,118 @@
+package com.timgroup.statsd;
+
+/**
+ * Records execution times per aspect into fixed-size histograms, and sends a summary
+ * of each one every aggregation interval in the form chosen by the {@link TimerAggregation}.
+ * A timer not recorded for a whole interval is forgotten until it is next recorded.
+ */
+final class TimerAggregator implements Aggregator, SeriesMap.Writer<TimerHistogram> {
+
+    private static final byte[] GAUGE_TYPE = MessageEncoder.ascii("|g");
+    private static final byte[] TIMER_TYPE = MessageEncoder.ascii("|ms");
+    private static final byte[] SAMPLE_RATE_PREFIX = MessageEncoder.ascii("|@");
+
+    private static final double[] QUANTILES = { 0.5d, 0.9d, 0.99d, 0.999d };
+    private static final byte[][] QUANTILE_SUFFIXES = {
+        MessageEncoder.ascii(".p50:"), MessageEncoder.ascii(".p90:"), MessageEncoder.ascii(".p99:"), MessageEncoder.ascii(".p999:")
+    };
+    private static final byte[] COUNT_SUFFIX = MessageEncoder.ascii(".count:");
+    private static final byte[] MIN_SUFFIX = MessageEncoder.ascii(".min:");
+    private static final byte[] MAX_SUFFIX = MessageEncoder.ascii(".max:");
+    private static final byte[] MEAN_SUFFIX = MessageEncoder.ascii(".mean:");
+
+    private final byte[] prefix;
+    private final byte[] constantTags;
+    private final TimerAggregation mode;
+    private final int maxSamples;
+    private final SeriesMap<TimerHistogram> histograms = new SeriesMap<TimerHistogram>() {
+        @Override TimerHistogram create() {
+            return new TimerHistogram();
+        }
+    };
+    private final TimerHistogram.Snapshot snapshot = new TimerHistogram.Snapshot();
+
+    /**
+     * @param constantTags
+     *     the suffix carrying the client's constant tags, for timers without tags of their own
+     */
+    TimerAggregator(byte[] prefix, byte[] constantTags, TimerAggregation mode, int maxSamples) {
+        if (mode == TimerAggregation.NONE) {
+            throw new IllegalArgumentException("timers are not being aggregated");
+        }
+        if (maxSamples < 2) {
+            throw new IllegalArgumentException("at least two timer samples are needed per interval: " + maxSamples);
+        }
+        this.prefix = prefix;
+        this.constantTags = constantTags;
+        this.mode = mode;
+        this.maxSamples = maxSamples;
+    }
+
+    void record(String aspect, TagSet tags, long timeInMs, double sampleRate) {
+        histograms.get(aspect, tags).record(timeInMs, sampleRate);
+    }
+
+    @Override
+    public void flush(MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        histograms.flush(constantTags, this, encoder, out);
+    }
+
+    @Override
+    public boolean write(String aspect, TimerHistogram histogram, byte[] tags, MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        histogram.drainTo(snapshot);
+        if (snapshot.isEmpty()) {
+            return false;
+        }
+        if (mode == TimerAggregation.GAUGES) {
+            writeGauges(aspect, tags, encoder, out);
+        } else {
+            writeSamples(aspect, tags, encoder, out);
+        }
+        return true;
+    }
+
+    private void writeGauges(String aspect, byte[] tags, MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        final double count = snapshot.count();
+        if (count == Math.rint(count)) {
+            gauge(encoder, aspect, COUNT_SUFFIX).putLong((long) count).put(GAUGE_TYPE).put(tags).writeTo(out);
+        } else {
+            gauge(encoder, aspect, COUNT_SUFFIX).putDouble(count).put(GAUGE_TYPE).put(tags).writeTo(out);
+        }
+        gauge(encoder, aspect, MIN_SUFFIX).putLong(snapshot.min).put(GAUGE_TYPE).put(tags).writeTo(out);
+        gauge(encoder, aspect, MAX_SUFFIX).putLong(snapshot.max).put(GAUGE_TYPE).put(tags).writeTo(out);
+        gauge(encoder, aspect, MEAN_SUFFIX).putDouble(snapshot.mean()).put(GAUGE_TYPE).put(tags).writeTo(out);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            gauge(encoder, aspect, QUANTILE_SUFFIXES[i]).putLong(snapshot.valueAtQuantile(QUANTILES[i])).put(GAUGE_TYPE).put(tags).writeTo(out);
+        }
+    }
+
+    private MessageEncoder gauge(MessageEncoder encoder, String aspect, byte[] suffix) {
+        return encoder.reset().put(prefix).putUtf8(aspect).put(suffix);
+    }
+
+    /**
+     * Sends the minimum, the maximum, and samples at evenly spaced quantiles in between, each
+     * standing for count / samples executions. There are never more samples than executions
+     * counted, since a sample rate above one would not be understood.
+     */
+    private void writeSamples(String aspect, byte[] tags, MessageEncoder encoder, MessageRingBuffer.Handler out) {
+        final double count = snapshot.count();
+        final int samples = (int) Math.max(1L, Math.min((long) maxSamples, (long) count));
+        final double sampleRate = Math.min(1.0d, samples / count);
+        for (int i = 0; i < samples; i++) {
+            final long value;
+            if (i == 0) {
+                value = snapshot.min;
+            } else if (i == samples - 1) {
+                value = snapshot.max;
+            } else {
+                value = snapshot.valueAtQuantile((double) i / (samples - 1));
+            }
+            encoder.reset().put(prefix).putUtf8(aspect).put((byte) ':').putLong(value).put(TIMER_TYPE);
+            if (sampleRate != 1.0d) {
+                encoder.put(SAMPLE_RATE_PREFIX).putDouble(sampleRate);
+            }
+            encoder.put(tags).writeTo(out);
+        }
+    }
+}
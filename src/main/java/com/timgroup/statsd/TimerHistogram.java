@@ -0,0 +1,136 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of execution times in milliseconds.
+ *
+ * <p>Times below 64 are counted exactly. Above that, each power of two is split into
+ * 32 equal buckets, so a time is known to within about 3%. Times beyond 2<sup>40</sup>ms
+ * share the last bucket. Counts are held in units of 1/{@value #COUNT_SCALE} of an
+ * execution, so that sampled times can be weighted by the inverse of their sample rate.</p>
+ */
+final class TimerHistogram {
+
+    static final long COUNT_SCALE = 1024L;
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int EXACT_BUCKETS = 2 * SUB_BUCKETS;
+    private static final int MAX_SHIFT = 35;
+    private static final long MAX_VALUE = (2L * SUB_BUCKETS << MAX_SHIFT) - 1;
+
+    static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final StripedAccumulator sum = new StripedAccumulator();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    void record(long timeInMs, double sampleRate) {
+        final long value = Math.max(0L, timeInMs);
+        if (sampleRate > 0.0d && sampleRate < 1.0d) {
+            counts.getAndAdd(bucketIndex(value), Math.max(1L, Math.round(COUNT_SCALE / sampleRate)));
+            sum.add(value / sampleRate);
+        } else {
+            counts.getAndAdd(bucketIndex(value), COUNT_SCALE);
+            sum.add(value);
+        }
+
+        long current = min.get();
+        while (value < current && !min.compareAndSet(current, value)) {
+            current = min.get();
+        }
+        current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Moves everything recorded since the last call into the given snapshot, leaving the histogram empty.
+     */
+    void drainTo(Snapshot snapshot) {
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            final long count = counts.getAndSet(i, 0L);
+            snapshot.counts[i] = count;
+            total += count;
+        }
+        snapshot.scaledCount = total;
+        snapshot.sum = sum.drainLong() + sum.drainDouble();
+        snapshot.min = min.getAndSet(Long.MAX_VALUE);
+        snapshot.max = max.getAndSet(Long.MIN_VALUE);
+
+        // a time recorded while draining may be counted here but have had its extremes taken by the previous interval
+        if (total > 0L && snapshot.min > snapshot.max) {
+            int first = 0;
+            while (snapshot.counts[first] == 0L) {
+                first++;
+            }
+            int last = BUCKETS - 1;
+            while (snapshot.counts[last] == 0L) {
+                last--;
+            }
+            snapshot.min = bucketMidpoint(first);
+            snapshot.max = bucketMidpoint(last);
+        }
+    }
+
+    static int bucketIndex(long value) {
+        if (value < EXACT_BUCKETS) {
+            return (int) value;
+        }
+        final long clamped = Math.min(value, MAX_VALUE);
+        final int shift = 63 - Long.numberOfLeadingZeros(clamped) - SUB_BUCKET_BITS;
+        return EXACT_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((clamped >>> shift) - SUB_BUCKETS);
+    }
+
+    static long bucketMidpoint(int index) {
+        if (index < EXACT_BUCKETS) {
+            return index;
+        }
+        final int shift = (index - EXACT_BUCKETS) / SUB_BUCKETS + 1;
+        final long lowerBound = (long) (SUB_BUCKETS + (index - EXACT_BUCKETS) % SUB_BUCKETS) << shift;
+        return lowerBound + ((1L << shift) >> 1);
+    }
+
+    /**
+     * The contents of a histogram over one interval, reused from one interval to the next.
+     */
+    static final class Snapshot {
+        final long[] counts = new long[BUCKETS];
+        long scaledCount;
+        double sum;
+        long min;
+        long max;
+
+        boolean isEmpty() {
+            return scaledCount == 0L;
+        }
+
+        double count() {
+            return (double) scaledCount / COUNT_SCALE;
+        }
+
+        double mean() {
+            return sum / count();
+        }
+
+        /**
+         * @return the time below which the given fraction of executions fell, as closely as the buckets allow
+         */
+        long valueAtQuantile(double quantile) {
+            final double target = quantile * scaledCount;
+            long cumulative = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += counts[i];
+                if (cumulative > 0L && cumulative >= target) {
+                    return Math.max(min, Math.min(max, bucketMidpoint(i)));
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends each batch of messages to a StatsD server as a single UDP datagram.
+ *
+ * <p>The server's host name is resolved when the transport is opened and, if a refresh
+ * interval is given, again on a background thread at that interval, so that a server
+ * whose address changes is followed without a restart. When a new address is found, the
+ * next batch is sent over a new channel connected to it. Lookups are also subject to the
+ * JVM's own cache of host names ({@code networkaddress.cache.ttl}).</p>
+ *
+ * <p>Failing to resolve the host name again, or to connect to its new address, does not
+ * fail any write: batches carry on going to the last address connected to, and the failure
+ * is passed to the error handler. A new address which could not be connected to is tried
+ * again once a refresh interval has passed.</p>
+ */
+public final class UdpTransport implements StatsDTransport {
+
+    private final String hostname;
+    private final int port;
+    private final long refreshIntervalMillis;
+    private final AddressResolver resolver;
+    private final StatsDClientErrorHandler handler;
+
+    private volatile InetSocketAddress resolvedAddress;
+    private InetSocketAddress connectedAddress;
+    private InetSocketAddress failedAddress;
+    private long retryAtMillis;
+    private DatagramChannel channel;
+    private ScheduledExecutorService refresher;
+
+    /**
+     * @param hostname
+     *     the host name of the targeted StatsD server
+     * @param port
+     *     the port of the targeted StatsD server
+     */
+    public UdpTransport(String hostname, int port) {
+        this(hostname, port, 0L);
+    }
+
+    /**
+     * @param refreshIntervalMillis
+     *     how often to resolve the host name again, or zero to resolve it only once
+     */
+    public UdpTransport(String hostname, int port, long refreshIntervalMillis) {
+        this(hostname, port, refreshIntervalMillis, NonBlockingStatsDClient.NO_OP_HANDLER);
+    }
+
+    /**
+     * @param handler
+     *     handler to use when the host name cannot be resolved again, or its new address cannot be connected to
+     */
+    public UdpTransport(String hostname, int port, long refreshIntervalMillis, StatsDClientErrorHandler handler) {
+        this(hostname, port, refreshIntervalMillis, AddressResolver.SYSTEM, handler);
+    }
+
+    UdpTransport(String hostname, int port, long refreshIntervalMillis, AddressResolver resolver, StatsDClientErrorHandler handler) {
+        if (refreshIntervalMillis < 0L) {
+            throw new IllegalArgumentException("refreshIntervalMillis must not be negative: " + refreshIntervalMillis);
+        }
+        this.hostname = hostname;
+        this.port = port;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        this.resolver = resolver;
+        this.handler = (handler == null) ? NonBlockingStatsDClient.NO_OP_HANDLER : handler;
+    }
+
+    @Override
+    public void open() throws IOException {
+        resolvedAddress = new InetSocketAddress(resolver.resolve(hostname), port);
+        connectedAddress = resolvedAddress;
+        channel = DatagramChannel.open();
+        channel.connect(connectedAddress);
+
+        if (refreshIntervalMillis > 0L) {
+            refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                final ThreadFactory delegate = Executors.defaultThreadFactory();
+                @Override public Thread newThread(Runnable r) {
+                    Thread result = delegate.newThread(r);
+                    result.setName("StatsD-resolver-" + result.getName());
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                @Override public void run() {
+                    refresh();
+                }
+            }, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer batch) throws IOException {
+        final InetSocketAddress latest = resolvedAddress;
+        if (latest != connectedAddress && (latest != failedAddress || System.currentTimeMillis() >= retryAtMillis)) {
+            try {
+                reconnect(latest);
+                failedAddress = null;
+            } catch (IOException e) {
+                failedAddress = latest;
+                retryAtMillis = System.currentTimeMillis() + refreshIntervalMillis;
+                handler.handle(e);
+            }
+        }
+        channel.write(batch);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Resolves the host name again. Any failure is reported and the refresh carried on with,
+     * since an exception escaping the scheduled task would cancel every refresh after it.
+     */
+    private void refresh() {
+        try {
+            final InetSocketAddress latest = new InetSocketAddress(resolver.resolve(hostname), port);
+            if (!latest.equals(resolvedAddress)) {
+                resolvedAddress = latest;
+            }
+        } catch (Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    /**
+     * Switches to a new channel connected to the given address, carrying on with the
+     * current channel if the new one cannot be set up.
+     */
+    private void reconnect(InetSocketAddress address) throws IOException {
+        final DatagramChannel replacement = DatagramChannel.open();
+        try {
+            replacement.connect(address);
+        } catch (IOException e) {
+            replacement.close();
+            throw e;
+        }
+        final DatagramChannel previous = channel;
+        channel = replacement;
+        connectedAddress = address;
+        previous.close();
+    }
+
+    /**
+     * Looks up the address of a host.
+     */
+    interface AddressResolver {
+        AddressResolver SYSTEM = new AddressResolver() {
+            @Override public InetAddress resolve(String hostname) throws UnknownHostException {
+                return InetAddress.getByName(hostname);
+            }
+        };
+
+        InetAddress resolve(String hostname) throws UnknownHostException;
+    }
+}
@@ -0,0 +1,98 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends batches of messages to a StatsD agent on the same host through a Unix domain
+ * socket in stream mode, each message terminated by a newline, avoiding the cost and
+ * the losses of the loopback network.
+ *
+ * <p>It behaves as a {@link TcpTransport} does: batches wait in a bounded buffer while the
+ * socket is connecting or backed up, and it reconnects with increasing backoff. Unix domain
+ * socket channels need Java 16 or later, so opening this transport fails on older runtimes;
+ * see {@link #isSupported()}.</p>
+ */
+public final class UnixDomainSocketTransport extends StreamTransport {
+
+    private static final Method OPEN_CHANNEL;
+    private static final Object UNIX_PROTOCOL_FAMILY;
+    private static final Method ADDRESS_OF;
+
+    static {
+        Method openChannel = null;
+        Object unixProtocolFamily = null;
+        Method addressOf = null;
+        try {
+            final Class<?> protocolFamily = Class.forName("java.net.ProtocolFamily");
+            openChannel = SocketChannel.class.getMethod("open", protocolFamily);
+            unixProtocolFamily = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+        } catch (Exception e) {
+            openChannel = null;
+        }
+        OPEN_CHANNEL = openChannel;
+        UNIX_PROTOCOL_FAMILY = unixProtocolFamily;
+        ADDRESS_OF = addressOf;
+    }
+
+    private final String path;
+
+    /**
+     * @param path
+     *     the file system path of the StatsD agent's socket
+     */
+    public UnixDomainSocketTransport(String path) {
+        this(path, TcpTransport.DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * @param maxPendingBytes
+     *     the most bytes which may wait for the socket to be connected or to drain
+     */
+    public UnixDomainSocketTransport(String path, int maxPendingBytes) {
+        super(maxPendingBytes);
+        this.path = path;
+    }
+
+    /**
+     * @return whether the running JVM supports Unix domain socket channels
+     */
+    public static boolean isSupported() {
+        return OPEN_CHANNEL != null;
+    }
+
+    @Override
+    SocketChannel openChannel() throws IOException {
+        return (SocketChannel) invoke(OPEN_CHANNEL, UNIX_PROTOCOL_FAMILY);
+    }
+
+    @Override
+    SocketAddress serverAddress() throws IOException {
+        if (!isSupported()) {
+            throw new IOException("Unix domain sockets are not supported by this JVM (Java 16 or later is needed)");
+        }
+        return (SocketAddress) invoke(ADDRESS_OF, path);
+    }
+
+    @Override
+    String describeServer() {
+        return path + " over a Unix domain socket";
+    }
+
+    private static Object invoke(Method factory, Object argument) throws IOException {
+        try {
+            return factory.invoke(null, argument);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to use a Unix domain socket", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException("Failed to use a Unix domain socket", e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public final class ConsistentHashRingTest {
+
+    private static final int KEYS = 20000;
+
+    private final ConsistentHashRing<String> ring = new ConsistentHashRing<String>()
+            .with("a", "a").with("b", "b").with("c", "c").with("d", "d");
+
+    @Test public void
+    owns_no_keys_when_empty() {
+        assertThat(new ConsistentHashRing<String>().nodeFor("my.aspect"), nullValue());
+    }
+
+    @Test public void
+    spreads_keys_roughly_evenly() {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+            final String node = ring.nodeFor("my.aspect." + i);
+            counts.put(node, counts.containsKey(node) ? counts.get(node) + 1 : 1);
+        }
+        for (Integer count : counts.values()) {
+            assertThat(count, greaterThan(KEYS / 4 * 7 / 10));
+            assertThat(count, lessThan(KEYS / 4 * 13 / 10));
+        }
+    }
+
+    @Test public void
+    only_moves_keys_to_an_added_node() {
+        final ConsistentHashRing<String> grown = ring.with("e", "e");
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            final String before = ring.nodeFor("my.aspect." + i);
+            final String after = grown.nodeFor("my.aspect." + i);
+            if (!before.equals(after)) {
+                assertThat(after, equalTo("e"));
+                moved++;
+            }
+        }
+        assertThat(moved, greaterThan(KEYS / 5 * 7 / 10));
+        assertThat(moved, lessThan(KEYS / 5 * 13 / 10));
+    }
+
+    @Test public void
+    only_moves_keys_from_a_removed_node() {
+        final ConsistentHashRing<String> shrunk = ring.without("b");
+        for (int i = 0; i < KEYS; i++) {
+            final String before = ring.nodeFor("my.aspect." + i);
+            final String after = shrunk.nodeFor("my.aspect." + i);
+            if (!before.equals("b")) {
+                assertThat(after, equalTo(before));
+            }
+        }
+    }
+}
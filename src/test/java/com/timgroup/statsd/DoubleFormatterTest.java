@@ -0,0 +1,102 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.nio.charset.Charset;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+public final class DoubleFormatterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final NumberFormat numberFormat = NumberFormat.getInstance(Locale.US);
+    {
+        numberFormat.setGroupingUsed(false);
+        numberFormat.setMaximumFractionDigits(19);
+    }
+
+    @Test public void
+    formats_special_values_like_number_format() {
+        assertFormattedLikeNumberFormat(Double.NaN);
+        assertFormattedLikeNumberFormat(Double.POSITIVE_INFINITY);
+        assertFormattedLikeNumberFormat(Double.NEGATIVE_INFINITY);
+        assertFormattedLikeNumberFormat(0.0d);
+        assertFormattedLikeNumberFormat(-0.0d);
+    }
+
+    @Test public void
+    formats_typical_values_like_number_format() {
+        assertFormattedLikeNumberFormat(1.0d);
+        assertFormattedLikeNumberFormat(-1.0d);
+        assertFormattedLikeNumberFormat(0.1d);
+        assertFormattedLikeNumberFormat(0.5d);
+        assertFormattedLikeNumberFormat(0.1d + 0.2d);
+        assertFormattedLikeNumberFormat(1.0d / 3.0d);
+        assertFormattedLikeNumberFormat(-2.0d / 3.0d);
+        assertFormattedLikeNumberFormat(2.675d);
+        assertFormattedLikeNumberFormat(423.123456789d);
+        assertFormattedLikeNumberFormat(423423423.9d);
+        assertFormattedLikeNumberFormat(0.00024d);
+        assertFormattedLikeNumberFormat(0.000123d);
+        assertFormattedLikeNumberFormat(1e15d);
+        assertFormattedLikeNumberFormat(9007199254740991.0d);
+        assertFormattedLikeNumberFormat(1e22d);
+        assertFormattedLikeNumberFormat(Double.MAX_VALUE);
+    }
+
+    @Test public void
+    rounds_to_nineteen_fraction_digits_like_number_format() {
+        assertFormattedLikeNumberFormat(1.2345678901234567e-5d);
+        assertFormattedLikeNumberFormat(1e-19d);
+        assertFormattedLikeNumberFormat(1.5e-19d);
+        assertFormattedLikeNumberFormat(2.5e-19d);
+        assertFormattedLikeNumberFormat(5e-20d);
+        assertFormattedLikeNumberFormat(-1e-30d);
+    }
+
+    @Test public void
+    formats_subnormal_values_like_number_format() {
+        assertFormattedLikeNumberFormat(Double.MIN_VALUE);
+        assertFormattedLikeNumberFormat(-Double.MIN_VALUE);
+        assertFormattedLikeNumberFormat(Double.MIN_NORMAL);
+        assertFormattedLikeNumberFormat(Double.MIN_NORMAL - Double.MIN_VALUE);
+    }
+
+    @Test public void
+    formats_random_values_of_typical_magnitude_like_number_format() {
+        final Random random = new Random(20140601L);
+        for (int i = 0; i < 100000; i++) {
+            assertFormattedLikeNumberFormat(random.nextDouble());
+            assertFormattedLikeNumberFormat(random.nextDouble() * Math.pow(10, -random.nextInt(25)));
+            assertFormattedLikeNumberFormat(random.nextInt() / Math.pow(10, random.nextInt(12)));
+            assertFormattedLikeNumberFormat((double) random.nextInt(100000) / (1 + random.nextInt(1000)));
+        }
+    }
+
+    @Test public void
+    formats_arbitrary_values_to_text_which_parses_to_the_same_value_as_number_format_output() {
+        final Random random = new Random(20140601L);
+        for (int i = 0; i < 100000; i++) {
+            final double value = Double.longBitsToDouble(random.nextLong());
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                assertThat(Double.toString(value), Double.parseDouble(format(value)),
+                           equalTo(Double.parseDouble(numberFormat.format(value))));
+            }
+        }
+    }
+
+    private void assertFormattedLikeNumberFormat(double value) {
+        assertThat(Double.toString(value), format(value), equalTo(numberFormat.format(value)));
+    }
+
+    private static String format(double value) {
+        final byte[] buffer = new byte[DoubleFormatter.MAX_LENGTH + 2];
+        final int end = DoubleFormatter.format(value, buffer, 1);
+        return new String(buffer, 1, end - 1, UTF_8);
+    }
+}
@@ -0,0 +1,62 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public final class LoadShedderTest {
+
+    @Test(timeout=5000L) public void
+    sheds_more_load_while_the_queue_stays_full_and_less_once_it_has_drained() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final NonBlockingSender sender = new NonBlockingSender(new StatsDTransport() {
+            @Override public void open() { }
+            @Override public void write(ByteBuffer batch) throws IOException {
+                writing.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+            @Override public void close() { }
+        }, Charset.forName("UTF-8"), NonBlockingStatsDClient.NO_OP_HANDLER, 0, 0L, 8, QueueOverflowPolicy.DROP_NEWEST, 0L,
+                SenderExecution.platformThread(), false, null);
+        try {
+            final LoadShedder shedder = new LoadShedder(sender, 0.4d);
+            sender.send("first");
+            writing.await();
+            for (int i = 0; i < 6; i++) {
+                sender.send("queued" + i);
+            }
+
+            shedder.flush(null, null);
+            assertThat(shedder.factor(), closeTo(0.7d, 1e-9));
+            shedder.flush(null, null);
+            assertThat(shedder.factor(), closeTo(0.49d, 1e-9));
+            shedder.flush(null, null);
+            assertThat(shedder.factor(), equalTo(0.4d));
+
+            released.countDown();
+            while (sender.getQueueSize() > 0) {
+                Thread.sleep(10L);
+            }
+            while (shedder.factor() == 0.4d) { // until the time spent blocked in the first write has passed
+                Thread.sleep(20L);
+                shedder.flush(null, null);
+            }
+            assertThat(shedder.factor(), closeTo(0.44d, 1e-9));
+        } finally {
+            released.countDown();
+            sender.stop();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public final class MessageRingBufferTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test public void
+    rounds_capacity_up_to_a_power_of_two() {
+        assertThat(new MessageRingBuffer(1000).capacity(), is(1024));
+        assertThat(new MessageRingBuffer(8).capacity(), is(8));
+    }
+
+    @Test public void
+    returns_messages_in_the_order_they_were_offered_across_wraparound() {
+        final MessageRingBuffer buffer = new MessageRingBuffer(4);
+        for (int i = 0; i < 10; i++) {
+            assertThat(offer(buffer, "a" + i), is(true));
+            assertThat(offer(buffer, "b" + i), is(true));
+            assertThat(poll(buffer), equalTo("a" + i));
+            assertThat(poll(buffer), equalTo("b" + i));
+        }
+        assertThat(poll(buffer), is(nullValue()));
+        assertThat(buffer.isEmpty(), is(true));
+    }
+
+    @Test public void
+    refuses_messages_when_full() {
+        final MessageRingBuffer buffer = new MessageRingBuffer(2);
+        assertThat(offer(buffer, "one"), is(true));
+        assertThat(offer(buffer, "two"), is(true));
+        assertThat(offer(buffer, "three"), is(false));
+        assertThat(buffer.size(), is(2));
+
+        assertThat(poll(buffer), equalTo("one"));
+        assertThat(offer(buffer, "three"), is(true));
+    }
+
+    @Test(timeout=10000L) public void
+    loses_no_messages_offered_by_concurrent_producers() throws Exception {
+        final int producers = 4;
+        final int messagesPerProducer = 10000;
+        final MessageRingBuffer buffer = new MessageRingBuffer(64);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for (int p = 0; p < producers; p++) {
+            final String name = "p" + p + "-";
+            new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) { }
+                    for (int i = 0; i < messagesPerProducer; i++) {
+                        final String message = name + i;
+                        while (!offer(buffer, message)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        final Set<String> received = new HashSet<String>();
+        while (received.size() < producers * messagesPerProducer) {
+            final String message = poll(buffer);
+            if (message == null) {
+                Thread.yield();
+            } else {
+                assertThat(message, received.add(message), is(true));
+            }
+        }
+        assertThat(poll(buffer), is(nullValue()));
+    }
+
+    private static boolean offer(MessageRingBuffer buffer, String message) {
+        return buffer.offer(ByteBuffer.wrap(message.getBytes(UTF_8)));
+    }
+
+    private static String poll(MessageRingBuffer buffer) {
+        final String[] result = new String[1];
+        buffer.poll(new MessageRingBuffer.Handler() {
+            @Override public void handle(byte[] data, int offset, int length) {
+                result[0] = new String(data, offset, length, UTF_8);
+            }
+        });
+        return result[0];
+    }
+}
@@ -3,18 +3,35 @@ package com.timgroup.statsd;
 import static java.lang.Long.valueOf;
 import static junit.framework.Assert.assertTrue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.anyOf;
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.startsWith;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Test;
@@ -136,6 +153,14 @@ public final class NonBlockingStatsDClientTest {
         assertThat(server.messagesReceived(), contains("my.prefix.myset:test|s"));
     }
 
+    @Test(timeout=5000L) public void
+    sends_set_with_non_ascii_member_to_statsd_as_utf8() throws Exception {
+        client.recordSetEvent("myset", "caf\u00e9 \u20ac \ud83d\ude00");
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.myset:caf\u00e9 \u20ac \ud83d\ude00|s"));
+    }
+
     @Test(timeout=5000L) public void
     sends_timer_to_statsd() throws Exception {
         client.recordExecutionTime("mytime", 123L);
@@ -179,6 +204,58 @@ public final class NonBlockingStatsDClientTest {
         assertThat(server.messagesReceived(), contains("my.prefix.mytime:0|ms"));
     }
 
+    @Test(timeout=5000L) public void
+    sends_timer_in_nanoseconds_to_statsd_as_fractional_milliseconds() throws Exception {
+        client.recordExecutionTimeNanos("mytime", 1234567L);
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mytime:1.234567|ms"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_timer_for_operation_run_through_client() throws Exception {
+        final AtomicBoolean ran = new AtomicBoolean();
+        client.time("mytime", new Runnable() {
+            @Override public void run() {
+                ran.set(true);
+            }
+        });
+        server.waitForMessage();
+
+        assertTrue(ran.get());
+        final String messageReceived = server.messagesReceived().get(0);
+        assertTrue(messageReceived, messageReceived.matches("my\\.prefix\\.mytime:\\d+(\\.\\d+)?\\|ms"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_timer_from_stopwatch_handle_and_for_failed_calls() throws Exception {
+        final NonBlockingStatsDClient batchingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(60000L)
+                .build();
+        try {
+            final StatsDTimer timer = batchingClient.timer("mytime");
+            final long start = timer.start();
+            timer.stop(start);
+            try {
+                timer.time(new Callable<Void>() {
+                    @Override public Void call() throws Exception {
+                        throw new IOException("failed");
+                    }
+                });
+            } catch (IOException expected) { }
+        } finally {
+            batchingClient.stop();
+        }
+        server.waitForMessage();
+
+        final String[] lines = server.messagesReceived().get(0).split("\n");
+        assertThat(lines.length, is(2));
+        for (String line : lines) {
+            assertTrue(line, line.matches("my\\.prefix\\.mytime:\\d+(\\.\\d+)?\\|ms"));
+        }
+    }
+
     @Test(timeout=5000L) public void
     allows_empty_prefix() {
         final NonBlockingStatsDClient emptyPrefixClient = new NonBlockingStatsDClient(" ", "localhost", STATSD_SERVER_PORT);
@@ -203,9 +280,729 @@ public final class NonBlockingStatsDClientTest {
         assertThat(server.messagesReceived(), contains(startsWith("mycount:")));
     }
 
+    @Test(timeout=5000L) public void
+    sends_several_messages_in_one_packet_when_batching() throws Exception {
+        final NonBlockingStatsDClient batchingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(1000L)
+                .build();
+        try {
+            batchingClient.count("mycount", 1L);
+            batchingClient.recordGaugeValue("mygauge", 2L);
+            batchingClient.recordExecutionTime("mytime", 3L);
+            server.waitForMessage();
+        } finally {
+            batchingClient.stop();
+        }
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:1|c\nmy.prefix.mygauge:2|g\nmy.prefix.mytime:3|ms"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_roughly_the_sampled_fraction_of_events() throws Exception {
+        final NonBlockingStatsDClient samplingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .aggregateCounters(true).aggregationIntervalMillis(60000L).sampleClientSide(true)
+                .build();
+        try {
+            for (int i = 0; i < 10000; i++) {
+                samplingClient.count("mycount", 1L, 0.1);
+            }
+        } finally {
+            samplingClient.stop();
+        }
+        server.waitForMessage();
+        final Matcher resultMatcher = Pattern.compile("my\\.prefix\\.mycount:(\\d+)\\|c").matcher(server.messagesReceived().get(0));
+        assertTrue(server.messagesReceived().get(0), resultMatcher.matches());
+        assertThat(valueOf(resultMatcher.group(1)), Matchers.greaterThan(7000L));
+        assertThat(valueOf(resultMatcher.group(1)), Matchers.lessThan(13000L));
+    }
+
+    @Test(timeout=5000L) public void
+    applies_default_sample_rates_to_aspects_beneath_the_configured_name() throws Exception {
+        final NonBlockingStatsDClient samplingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(60000L)
+                .defaultSampleRate("noisy", 0.0).defaultSampleRate("noisy.important", 1.0)
+                .build();
+        try {
+            samplingClient.count("noisy.count", 1L);
+            samplingClient.recordExecutionTime("noisy.time", 2L);
+            samplingClient.count("noisy.important.count", 3L);
+            samplingClient.count("noisyish", 4L);
+        } finally {
+            samplingClient.stop();
+        }
+        server.waitForMessage();
+        assertThat(server.messagesReceived(), contains("my.prefix.noisy.important.count:3|c\nmy.prefix.noisyish:4|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_prefixed_messages_through_metric_handles() throws Exception {
+        final NonBlockingStatsDClient batchingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(60000L)
+                .sampleClientSide(false)
+                .build();
+        try {
+            batchingClient.counter("mycount").count(3L, 0.5);
+            batchingClient.gauge("mygauge").recordValue(-1.5d);
+            batchingClient.gauge("mygauge").recordDelta(2L);
+            batchingClient.timer("mytime").recordExecutionTime(4L);
+        } finally {
+            batchingClient.stop();
+        }
+        server.waitForMessage();
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:3|c|@0.5\nmy.prefix.mygauge:0|g\n"
+                + "my.prefix.mygauge:-1.5|g\nmy.prefix.mygauge:+2|g\nmy.prefix.mytime:4|ms"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_one_summed_counter_per_aspect_when_aggregating_counters() throws Exception {
+        final NonBlockingStatsDClient aggregatingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES)
+                .aggregateCounters(true).aggregationIntervalMillis(60000L).sampleClientSide(false)
+                .build();
+        try {
+            aggregatingClient.incrementCounter("mycount");
+            aggregatingClient.count("mycount", 2L);
+            aggregatingClient.count("mycount", 2L, 0.5);
+        } finally {
+            aggregatingClient.stop();
+        }
+        server.waitForMessage();
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:7|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_only_the_latest_gauge_value_per_aspect_when_coalescing_gauges() throws Exception {
+        final NonBlockingStatsDClient coalescingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES)
+                .coalesceGauges(true).aggregationIntervalMillis(60000L)
+                .build();
+        try {
+            coalescingClient.recordGaugeValue("mygauge", 100L);
+            coalescingClient.recordGaugeValue("mygauge", 5L);
+            coalescingClient.recordGaugeDelta("mygauge", -8L);
+            coalescingClient.recordGaugeDelta("mydelta", 2L);
+            coalescingClient.recordGaugeDelta("mydelta", 0.5d);
+        } finally {
+            coalescingClient.stop();
+        }
+        server.waitForMessage();
+        assertThat(server.messagesReceived(), contains(anyOf(
+                equalTo("my.prefix.mygauge:0|g\nmy.prefix.mygauge:-3|g\nmy.prefix.mydelta:+2.5|g"),
+                equalTo("my.prefix.mydelta:+2.5|g\nmy.prefix.mygauge:0|g\nmy.prefix.mygauge:-3|g"))));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_each_set_member_once_per_interval_when_deduplicating_sets() throws Exception {
+        final NonBlockingStatsDClient deduplicatingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(60000L)
+                .deduplicateSets(true).maxSetMembers(2).aggregationIntervalMillis(60000L)
+                .build();
+        try {
+            deduplicatingClient.recordSetEvent("myset", "a");
+            deduplicatingClient.recordSetEvent("myset", "a");
+            deduplicatingClient.recordSetEvent("otherset", "a");
+            deduplicatingClient.recordSetEvent("myset", "b");
+            deduplicatingClient.recordSetEvent("myset", "b");
+            deduplicatingClient.recordSetEvent("otherset", "a");
+        } finally {
+            deduplicatingClient.stop();
+        }
+        server.waitForMessage();
+        assertThat(server.messagesReceived(), contains("my.prefix.myset:a|s\nmy.prefix.otherset:a|s\n"
+                + "my.prefix.myset:b|s\nmy.prefix.myset:b|s"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_timer_summary_gauges_per_aspect_when_aggregating_timers() throws Exception {
+        final NonBlockingStatsDClient aggregatingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES)
+                .aggregateTimers(TimerAggregation.GAUGES).aggregationIntervalMillis(60000L)
+                .build();
+        try {
+            aggregatingClient.recordExecutionTime("mytime", 10L);
+            aggregatingClient.recordExecutionTime("mytime", 30L);
+            aggregatingClient.recordExecutionTime("mytime", 20L);
+        } finally {
+            aggregatingClient.stop();
+        }
+        server.waitForMessage();
+        assertThat(server.messagesReceived(), contains("my.prefix.mytime.count:3|g\nmy.prefix.mytime.min:10|g\n"
+                + "my.prefix.mytime.max:30|g\nmy.prefix.mytime.mean:20|g\nmy.prefix.mytime.p50:20|g\n"
+                + "my.prefix.mytime.p90:30|g\nmy.prefix.mytime.p99:30|g\nmy.prefix.mytime.p999:30|g"));
+    }
+
+    @Test(timeout=5000L) public void
+    never_sends_timer_samples_at_a_rate_above_one_when_aggregating_sampled_timers() throws Exception {
+        final NonBlockingStatsDClient aggregatingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES)
+                .aggregateTimers(TimerAggregation.SAMPLES).aggregationIntervalMillis(60000L)
+                .sampleClientSide(false)
+                .build();
+        try {
+            aggregatingClient.recordExecutionTime("mytime", 10L, 0.5);
+            aggregatingClient.recordExecutionTime("othertime", 20L, 0.4);
+        } finally {
+            aggregatingClient.stop();
+        }
+        server.waitForMessage();
+        final String messageReceived = server.messagesReceived().get(0);
+        assertTrue(messageReceived, messageReceived.contains("my.prefix.mytime:10|ms\nmy.prefix.mytime:10|ms"));
+        assertTrue(messageReceived, messageReceived.contains("my.prefix.othertime:20|ms|@0.8\nmy.prefix.othertime:20|ms|@0.8"));
+        assertTrue(messageReceived, !messageReceived.matches("(?s).*\\|@(1\\.\\d*[1-9]|[2-9]).*"));
+    }
+
+    @Test(timeout=5000L) public void
+    rounds_timer_in_nanoseconds_to_the_nearest_millisecond_when_aggregating_timers() throws Exception {
+        final NonBlockingStatsDClient aggregatingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES)
+                .aggregateTimers(TimerAggregation.GAUGES).aggregationIntervalMillis(60000L)
+                .build();
+        try {
+            aggregatingClient.recordExecutionTimeNanos("mytime", 1499999L);
+            aggregatingClient.recordExecutionTimeNanos("mytime", 1500000L);
+        } finally {
+            aggregatingClient.stop();
+        }
+        server.waitForMessage();
+        final String messageReceived = server.messagesReceived().get(0);
+        assertTrue(messageReceived, messageReceived.contains("my.prefix.mytime.min:1|g\nmy.prefix.mytime.max:2|g\n"));
+        assertThat(ConvenienceMethodProvidingStatsDClient.roundedMillis(1499999L), is(1L));
+        assertThat(ConvenienceMethodProvidingStatsDClient.roundedMillis(1500000L), is(2L));
+        assertThat(ConvenienceMethodProvidingStatsDClient.roundedMillis(-1L), is(0L));
+    }
+
+    @Test(timeout=5000L) public void
+    counts_what_the_sender_has_done_and_exposes_the_counts_over_jmx() throws Exception {
+        final NonBlockingStatsDClient instrumentedClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .registerMBean("instrumented")
+                .build();
+        final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName("com.timgroup.statsd:type=SenderTelemetry,name=\"instrumented\"");
+        final SenderTelemetry telemetry = instrumentedClient.getTelemetry();
+        try {
+            instrumentedClient.count("mycount", 1L);
+            server.waitForMessage();
+            while (telemetry.getSentPacketCount() == 0L) {
+                Thread.sleep(10L);
+            }
+            assertThat(telemetry.getQueuedMessageCount(), equalTo(1L));
+            assertThat(telemetry.getDroppedMessageCount(), equalTo(0L));
+            assertThat(telemetry.getSentByteCount(), equalTo((long) "my.prefix.mycount:1|c".length()));
+            assertThat(telemetry.getErrorCount(), equalTo(0L));
+            assertThat((Long) mbeanServer.getAttribute(name, "SentPacketCount"), equalTo(1L));
+            assertThat((Integer) mbeanServer.getAttribute(name, "QueueSize"), equalTo(0));
+        } finally {
+            instrumentedClient.stop();
+        }
+        assertThat(mbeanServer.isRegistered(name), is(false));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_its_own_telemetry_under_the_given_prefix_when_reporting_telemetry() throws Exception {
+        final NonBlockingStatsDClient reportingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(60000L)
+                .reportTelemetry("statsd.client").aggregationIntervalMillis(200L)
+                .build();
+        try {
+            reportingClient.count("mycount", 1L);
+            reportingClient.count("mycount", 2L);
+            Thread.sleep(300L);
+        } finally {
+            reportingClient.stop();
+        }
+        server.waitForMessage();
+        assertThat(server.messagesReceived(), contains(startsWith("my.prefix.mycount:1|c\nmy.prefix.mycount:2|c\n"
+                + "statsd.client.messages.queued:2|c\nstatsd.client.queue.size:0|g")));
+    }
+
+    @Test(timeout=5000L) public void
+    batches_the_messages_of_child_clients_with_those_of_their_parent() throws Exception {
+        final NonBlockingStatsDClient parent = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(60000L)
+                .build();
+        try {
+            final NonBlockingStatsDClient child = parent.withPrefix("db");
+            assertThat(child.getTelemetry(), is(parent.getTelemetry()));
+            parent.count("mycount", 1L);
+            child.count("mycount", 2L);
+            child.withPrefix("pool").recordGaugeValue("size", 3L);
+            child.stop();
+        } finally {
+            parent.stop();
+        }
+        server.waitForMessage();
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:1|c\nmy.prefix.db.mycount:2|c\nmy.prefix.db.pool.size:3|g"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_the_aggregates_of_clients_attached_to_a_shared_sender_when_they_stop() throws Exception {
+        final NonBlockingSender shared = new NonBlockingStatsDClientBuilder().hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(60000L)
+                .buildSender();
+        try {
+            final NonBlockingStatsDClient web = new NonBlockingStatsDClientBuilder()
+                    .prefix("web").sender(shared).aggregateCounters(true).aggregationIntervalMillis(60000L)
+                    .build();
+            final NonBlockingStatsDClient db = new NonBlockingStatsDClientBuilder()
+                    .prefix("db").sender(shared).aggregateCounters(true).aggregationIntervalMillis(60000L)
+                    .build();
+            web.incrementCounter("hits");
+            db.incrementCounter("queries");
+            web.incrementCounter("hits");
+            web.stop();
+            server.waitForMessage();
+            db.stop();
+        } finally {
+            shared.stop();
+        }
+        assertThat(server.messagesReceived(), contains("web.hits:2|c\ndb.queries:1|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_lingering_batches_and_aggregates_when_flushed() throws Exception {
+        final NonBlockingStatsDClient flushingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(60000L)
+                .aggregateCounters(true).aggregationIntervalMillis(60000L)
+                .build();
+        try {
+            flushingClient.count("mycount", 2L);
+            flushingClient.recordGaugeValue("mygauge", 1L);
+            assertThat(flushingClient.flush(1L, TimeUnit.SECONDS), is(true));
+            server.waitForMessage();
+            assertThat(server.messagesReceived(), contains("my.prefix.mygauge:1|g\nmy.prefix.mycount:2|c"));
+        } finally {
+            flushingClient.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    drops_and_counts_new_messages_once_the_queue_is_full_by_default() throws Exception {
+        final StalledTransport transport = new StalledTransport();
+        final NonBlockingStatsDClient stalledClient = stalledClient(transport, QueueOverflowPolicy.DROP_NEWEST, 0L);
+        try {
+            for (long i = 1L; i <= 4L; i++) {
+                stalledClient.count("mycount", i);
+            }
+        } finally {
+            transport.released.countDown();
+            stalledClient.stop();
+        }
+        assertThat(transport.lines(), contains("my.prefix.mycount:0|c", "my.prefix.mycount:1|c", "my.prefix.mycount:2|c"));
+        assertThat(stalledClient.getDroppedMessageCount(), equalTo(2L));
+        assertThat(stalledClient.getTelemetry().getQueuedMessageCount(), equalTo(3L));
+    }
+
+    @Test(timeout=5000L) public void
+    drops_and_counts_the_oldest_messages_once_the_queue_is_full_when_so_configured() throws Exception {
+        final StalledTransport transport = new StalledTransport();
+        final NonBlockingStatsDClient stalledClient = stalledClient(transport, QueueOverflowPolicy.DROP_OLDEST, 0L);
+        try {
+            for (long i = 1L; i <= 4L; i++) {
+                stalledClient.count("mycount", i);
+            }
+        } finally {
+            transport.released.countDown();
+            stalledClient.stop();
+        }
+        assertThat(transport.lines(), contains("my.prefix.mycount:0|c", "my.prefix.mycount:3|c", "my.prefix.mycount:4|c"));
+        assertThat(stalledClient.getDroppedMessageCount(), equalTo(2L));
+        assertThat(stalledClient.getTelemetry().getQueuedMessageCount(), equalTo(5L));
+    }
+
+    @Test(timeout=5000L) public void
+    blocks_for_room_in_a_full_queue_until_the_deadline_when_so_configured() throws Exception {
+        final StalledTransport transport = new StalledTransport();
+        final NonBlockingStatsDClient stalledClient = stalledClient(transport, QueueOverflowPolicy.BLOCK, 200L);
+        try {
+            stalledClient.count("mycount", 1L);
+            stalledClient.count("mycount", 2L);
+
+            final long blockedFrom = System.nanoTime();
+            stalledClient.count("mycount", 3L);
+            assertThat(System.nanoTime() - blockedFrom, Matchers.greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(200L)));
+            assertThat(stalledClient.getDroppedMessageCount(), equalTo(1L));
+
+            new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        Thread.sleep(50L);
+                    } catch (InterruptedException e) { }
+                    transport.released.countDown();
+                }
+            }).start();
+            stalledClient.count("mycount", 4L);
+        } finally {
+            transport.released.countDown();
+            stalledClient.stop();
+        }
+        assertThat(transport.lines(), contains("my.prefix.mycount:0|c", "my.prefix.mycount:1|c",
+                                               "my.prefix.mycount:2|c", "my.prefix.mycount:4|c"));
+        assertThat(stalledClient.getDroppedMessageCount(), equalTo(1L));
+    }
+
+    /**
+     * @return a client with room for two messages in its queue, whose sender is stuck writing a first one
+     */
+    private static NonBlockingStatsDClient stalledClient(StalledTransport transport, QueueOverflowPolicy overflowPolicy,
+                                                         long maxBlockMillis) throws InterruptedException {
+        final NonBlockingStatsDClient stalledClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").transport(transport).maxPacketSizeBytes(0).queueCapacity(2)
+                .overflowPolicy(overflowPolicy).maxBlockMillis(maxBlockMillis)
+                .build();
+        stalledClient.count("mycount", 0L);
+        transport.writing.await();
+        return stalledClient;
+    }
+
+    @Test(timeout=5000L) public void
+    counts_messages_rather_than_chunks_abandoned_when_stopping_at_a_deadline_with_producer_buffers() throws Exception {
+        final StalledTransport transport = new StalledTransport();
+        final NonBlockingStatsDClient stuckClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").transport(transport).maxPacketSizeBytes(100).producerBuffers(true)
+                .build();
+        try {
+            stuckClient.count("mycount", 0L);
+            stuckClient.flush();
+            transport.writing.await();
+            for (int i = 1; i <= 200; i++) {
+                stuckClient.count("mycount", i);
+            }
+            assertThat(stuckClient.stop(100L, TimeUnit.MILLISECONDS), equalTo(200L));
+        } finally {
+            transport.released.countDown();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    abandons_messages_still_queued_when_stopping_at_a_deadline() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final NonBlockingStatsDClient stuckClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").transport(new StatsDTransport() {
+                    @Override public void open() { }
+                    @Override public void write(ByteBuffer batch) throws IOException {
+                        writing.countDown();
+                        try {
+                            released.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e.toString());
+                        }
+                    }
+                    @Override public void close() { }
+                })
+                .build();
+        try {
+            stuckClient.count("mycount", 1L);
+            writing.await();
+            stuckClient.count("mycount", 2L);
+            stuckClient.count("mycount", 3L);
+            final Future<Void> flushed = stuckClient.flush();
+            assertThat(stuckClient.stop(100L, TimeUnit.MILLISECONDS), equalTo(2L));
+            released.countDown();
+            while (!flushed.isDone()) {
+                Thread.sleep(10L);
+            }
+            assertThat(flushed.isCancelled(), is(true));
+        } finally {
+            released.countDown();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    closes_the_transport_from_the_sender_thread_once_an_abandoned_write_returns() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final AtomicReference<Thread> writer = new AtomicReference<Thread>();
+        final AtomicReference<Thread> closer = new AtomicReference<Thread>();
+        final NonBlockingStatsDClient stuckClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").transport(new StatsDTransport() {
+                    @Override public void open() { }
+                    @Override public void write(ByteBuffer batch) throws IOException {
+                        writer.set(Thread.currentThread());
+                        writing.countDown();
+                        try {
+                            released.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e.toString());
+                        }
+                    }
+                    @Override public void close() {
+                        closer.set(Thread.currentThread());
+                    }
+                })
+                .build();
+        stuckClient.count("mycount", 1L);
+        writing.await();
+        new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(200L);
+                } catch (InterruptedException e) { }
+                released.countDown();
+            }
+        }).start();
+        stuckClient.stop(50L, TimeUnit.MILLISECONDS);
+
+        assertThat(closer.get(), is(writer.get()));
+    }
+
+    @Test(timeout=5000L) public void
+    appends_constant_tags_after_any_tags_given_with_a_metric() throws Exception {
+        final NonBlockingStatsDClient taggingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT).constantTags("env:test")
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(60000L)
+                .sampleClientSide(false)
+                .build();
+        try {
+            taggingClient.count("mycount", 1L, 0.5, "status:200");
+            taggingClient.gauge("mygauge", "pool:a").recordValue(-1L);
+            taggingClient.recordExecutionTime("mytime", 4L);
+        } finally {
+            taggingClient.stop();
+        }
+        server.waitForMessage();
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:1|c|@0.5|#env:test,status:200\n"
+                + "my.prefix.mygauge:0|g|#env:test,pool:a\nmy.prefix.mygauge:-1|g|#env:test,pool:a\n"
+                + "my.prefix.mytime:4|ms|#env:test"));
+    }
+
+    @Test(timeout=5000L) public void
+    sums_counters_apart_for_each_combination_of_tags_when_aggregating_counters() throws Exception {
+        final NonBlockingStatsDClient aggregatingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES)
+                .aggregateCounters(true).aggregationIntervalMillis(60000L)
+                .build();
+        try {
+            aggregatingClient.incrementCounter("mycount", "status:200");
+            aggregatingClient.incrementCounter("mycount", "status:200");
+            aggregatingClient.count("mycount", 5L);
+        } finally {
+            aggregatingClient.stop();
+        }
+        server.waitForMessage();
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:5|c\nmy.prefix.mycount:2|c|#status:200"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_the_chunks_of_threads_which_have_died_when_stopped() throws Exception {
+        final NonBlockingStatsDClient bufferingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(60000L)
+                .producerBuffers(true)
+                .build();
+        try {
+            for (final String aspect : new String[] { "one", "two" }) {
+                final Thread producer = new Thread(new Runnable() {
+                    @Override public void run() {
+                        bufferingClient.count(aspect, 1L);
+                        bufferingClient.count(aspect, 2L);
+                    }
+                });
+                producer.start();
+                producer.join();
+            }
+        } finally {
+            bufferingClient.stop();
+        }
+        server.waitForMessage();
+        assertThat(server.messagesReceived(), contains("my.prefix.one:1|c\nmy.prefix.one:2|c\nmy.prefix.two:1|c\nmy.prefix.two:2|c"));
+        assertThat(bufferingClient.getTelemetry().getQueuedMessageCount(), equalTo(4L));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_a_chunk_which_has_lingered_while_its_thread_sends_nothing_more() throws Exception {
+        final NonBlockingStatsDClient bufferingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(50L)
+                .producerBuffers(true)
+                .build();
+        try {
+            bufferingClient.count("mycount", 1L);
+            bufferingClient.recordGaugeValue("mygauge", 2L);
+            server.waitForMessage();
+        } finally {
+            bufferingClient.stop();
+        }
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:1|c\nmy.prefix.mygauge:2|g"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_a_message_larger_than_a_chunk_without_waiting_for_a_stop() throws Exception {
+        final NonBlockingStatsDClient bufferingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .maxPacketSizeBytes(200).maxLingerMillis(60000L)
+                .producerBuffers(true)
+                .build();
+        final StringBuilder member = new StringBuilder();
+        while (member.length() < 210) {
+            member.append("member");
+        }
+        try {
+            Thread.sleep(100L);
+            bufferingClient.recordSetEvent("myset", member.toString());
+            server.waitForMessage();
+        } finally {
+            bufferingClient.stop();
+        }
+        assertThat(server.messagesReceived(), contains("my.prefix.myset:" + member + "|s"));
+    }
+
+    @Test(timeout=5000L) public void
+    sweeps_chunks_for_a_flush_while_a_producer_waits_for_room_in_the_queue() throws Exception {
+        final StalledTransport transport = new StalledTransport();
+        final NonBlockingStatsDClient bufferingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").transport(transport).maxPacketSizeBytes(100).producerBuffers(true)
+                .queueCapacity(2).overflowPolicy(QueueOverflowPolicy.BLOCK).maxBlockMillis(60000L)
+                .build();
+        try {
+            final Thread producer = new Thread(new Runnable() {
+                @Override public void run() {
+                    for (int i = 0; i < 40; i++) {
+                        bufferingClient.count("mycount", i);
+                    }
+                }
+            });
+            producer.start();
+            transport.writing.await();
+            while (producer.isAlive() && producer.getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(1L);
+            }
+            final Future<Void> flushed = bufferingClient.flush();
+            transport.released.countDown();
+            flushed.get(2L, TimeUnit.SECONDS);
+            producer.join();
+            assertThat(bufferingClient.flush(1L, TimeUnit.SECONDS), is(true));
+        } finally {
+            transport.released.countDown();
+            bufferingClient.stop();
+        }
+        assertThat(bufferingClient.getDroppedMessageCount(), equalTo(0L));
+        assertThat(transport.lines().size(), is(40));
+        assertThat(transport.lines().get(39), is("my.prefix.mycount:39|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    discards_the_oldest_chunks_whole_and_counts_their_messages() throws Exception {
+        final StalledTransport transport = new StalledTransport();
+        final NonBlockingStatsDClient bufferingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").transport(transport).maxPacketSizeBytes(100).producerBuffers(true)
+                .queueCapacity(2).overflowPolicy(QueueOverflowPolicy.DROP_OLDEST)
+                .build();
+        try {
+            bufferingClient.count("mycount", 0L);
+            bufferingClient.flush();
+            transport.writing.await();
+            for (int i = 1; i <= 40; i++) {
+                bufferingClient.count("mycount", i);
+            }
+        } finally {
+            transport.released.countDown();
+            bufferingClient.stop();
+        }
+        final List<String> lines = transport.lines();
+        final long dropped = bufferingClient.getDroppedMessageCount();
+        assertThat(dropped, Matchers.greaterThan(0L));
+        assertThat(lines.size() + dropped, equalTo(41L));
+        assertThat(lines.get(0), is("my.prefix.mycount:0|c"));
+        assertThat(lines.get(lines.size() - 1), is("my.prefix.mycount:40|c"));
+        for (int i = 1; i < lines.size(); i++) {
+            assertThat(valueOf(lines.get(i).replaceAll("\\D", "")), Matchers.greaterThan(valueOf(lines.get(i - 1).replaceAll("\\D", ""))));
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    replays_batches_spilled_while_the_transport_was_failing_in_order() throws Exception {
+        final File spillFile = File.createTempFile("statsd-spill", ".journal");
+        final List<String> written = new ArrayList<String>();
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        final NonBlockingStatsDClient spillingClient = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").spillJournal(spillFile, 4096).transport(new StatsDTransport() {
+                    @Override public void open() { }
+                    @Override public void write(ByteBuffer batch) throws IOException {
+                        if (failing.get()) {
+                            throw new IOException("server is down");
+                        }
+                        final byte[] bytes = new byte[batch.remaining()];
+                        batch.get(bytes);
+                        synchronized (written) {
+                            written.add(new String(bytes, Charset.forName("UTF-8")));
+                        }
+                    }
+                    @Override public void close() { }
+                })
+                .build();
+        try {
+            spillingClient.count("mycount", 1L);
+            spillingClient.count("mycount", 2L);
+            spillingClient.flush(1L, TimeUnit.SECONDS);
+            assertThat(spillingClient.getTelemetry().getSpilledPacketCount(), equalTo(2L));
+
+            failing.set(false);
+            spillingClient.count("mycount", 3L); // joins the others until they are replayed
+            while (spillingClient.getTelemetry().getSentPacketCount() < 3L) {
+                Thread.sleep(10L);
+            }
+        } finally {
+            spillingClient.stop();
+            spillFile.delete();
+        }
+        synchronized (written) {
+            assertThat(written, contains("my.prefix.mycount:1|c", "my.prefix.mycount:2|c", "my.prefix.mycount:3|c"));
+        }
+        assertThat(spillingClient.getTelemetry().getReplayedPacketCount(), equalTo(3L));
+    }
+
+    /**
+     * Holds up every write until released, recording the messages written.
+     */
+    private static final class StalledTransport implements StatsDTransport {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        private final List<String> lines = new ArrayList<String>();
+
+        @Override public void open() { }
+
+        @Override public void write(ByteBuffer batch) throws IOException {
+            final byte[] bytes = new byte[batch.remaining()];
+            batch.get(bytes);
+            synchronized (lines) {
+                lines.addAll(Arrays.asList(new String(bytes, Charset.forName("UTF-8")).split("\n")));
+            }
+            writing.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e.toString());
+            }
+        }
+
+        @Override public void close() { }
+
+        List<String> lines() {
+            synchronized (lines) {
+                return new ArrayList<String>(lines);
+            }
+        }
+    }
+
     private static final class DummyStatsDServer {
         private final List<String> messagesReceived = new ArrayList<String>();
         private final DatagramSocket server;
+        private final Thread receiver;
 
         public DummyStatsDServer(int port) {
             try {
@@ -213,7 +1010,7 @@ public final class NonBlockingStatsDClientTest {
             } catch (SocketException e) {
                 throw new IllegalStateException(e);
             }
-            new Thread(new Runnable() {
+            receiver = new Thread(new Runnable() {
                 @Override public void run() {
                     try {
                         final DatagramPacket packet = new DatagramPacket(new byte[256], 256);
@@ -221,11 +1018,13 @@ public final class NonBlockingStatsDClientTest {
                         messagesReceived.add(new String(packet.getData(), Charset.forName("UTF-8")).trim());
                     } catch (Exception e) { }
                 }
-            }).start();
+            });
+            receiver.start();
         }
 
-        public void stop() {
+        public void stop() throws InterruptedException {
             server.close();
+            receiver.join(); // the port is only released once a blocked receive has returned
         }
 
         public void waitForMessage() {
@@ -0,0 +1,159 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assume.assumeTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public final class SenderExecutionTest {
+
+    private static final int STATSD_SERVER_PORT = 17260;
+
+    private final DummyStatsDServer server = new DummyStatsDServer(STATSD_SERVER_PORT);
+
+    @After
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    @Test(timeout=5000L) public void
+    writes_each_message_on_the_calling_thread_when_the_caller_runs_the_sender() throws Exception {
+        final NonBlockingStatsDClient client = builder().execution(SenderExecution.callerRuns()).build();
+        try {
+            client.count("mycount", 1L);
+            assertThat(client.getTelemetry().getSentPacketCount(), equalTo(1L));
+            client.recordGaugeValue("mygauge", 2L);
+            assertThat(client.getTelemetry().getSentPacketCount(), equalTo(2L));
+        } finally {
+            client.stop();
+        }
+        server.waitForPackets(2);
+        assertThat(server.packetsReceived(), contains("my.prefix.mycount:1|c", "my.prefix.mygauge:2|g"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_the_batch_left_behind_by_the_caller_when_the_sender_stops() throws Exception {
+        final NonBlockingStatsDClient client = builder().execution(SenderExecution.callerRuns())
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(60000L)
+                .build();
+        try {
+            client.count("mycount", 1L);
+            client.count("mycount", 2L);
+            assertThat(client.getTelemetry().getSentPacketCount(), equalTo(0L));
+        } finally {
+            client.stop();
+        }
+        server.waitForPackets(1);
+        assertThat(server.packetsReceived(), contains("my.prefix.mycount:1|c\nmy.prefix.mycount:2|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_a_lingering_batch_from_the_scheduler_once_it_is_due() throws Exception {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final NonBlockingStatsDClient client = builder().execution(SenderExecution.scheduler(scheduler))
+                .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(50L)
+                .build();
+        try {
+            client.count("mycount", 1L);
+            client.count("mycount", 2L);
+            server.waitForPackets(1);
+        } finally {
+            client.stop();
+            scheduler.shutdown();
+        }
+        assertThat(server.packetsReceived(), contains("my.prefix.mycount:1|c\nmy.prefix.mycount:2|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    drains_the_queue_in_a_task_of_the_given_executor_until_stopped() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final NonBlockingStatsDClient client = builder().execution(SenderExecution.executor(executor)).build();
+        try {
+            client.count("mycount", 1L);
+            server.waitForPackets(1);
+        } finally {
+            client.stop();
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(1L, TimeUnit.SECONDS), equalTo(true));
+        assertThat(server.packetsReceived(), contains("my.prefix.mycount:1|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    drains_the_queue_on_a_virtual_thread_where_supported() throws Exception {
+        assumeTrue(SenderExecution.isVirtualThreadSupported());
+        final NonBlockingStatsDClient client = builder().execution(SenderExecution.virtualThread()).build();
+        try {
+            client.count("mycount", 1L);
+            server.waitForPackets(1);
+        } finally {
+            client.stop();
+        }
+        assertThat(server.packetsReceived(), contains("my.prefix.mycount:1|c"));
+    }
+
+    private static NonBlockingStatsDClientBuilder builder() {
+        return new NonBlockingStatsDClientBuilder().prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT);
+    }
+
+    private static final class DummyStatsDServer {
+        private final List<String> packetsReceived = new ArrayList<String>();
+        private final DatagramSocket server;
+        private final Thread receiver;
+
+        public DummyStatsDServer(int port) {
+            try {
+                server = new DatagramSocket(port);
+            } catch (SocketException e) {
+                throw new IllegalStateException(e);
+            }
+            receiver = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        while (true) {
+                            final DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+                            server.receive(packet);
+                            synchronized (packetsReceived) {
+                                packetsReceived.add(new String(packet.getData(), 0, packet.getLength(), Charset.forName("UTF-8")));
+                            }
+                        }
+                    } catch (Exception e) { }
+                }
+            });
+            receiver.start();
+        }
+
+        public void stop() throws InterruptedException {
+            server.close();
+            receiver.join();
+        }
+
+        public void waitForPackets(int count) {
+            while (packetsReceived().size() < count) {
+                try {
+                    Thread.sleep(10L);
+                } catch (InterruptedException e) {}
+            }
+        }
+
+        public List<String> packetsReceived() {
+            synchronized (packetsReceived) {
+                return new ArrayList<String>(packetsReceived);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public final class SeriesMapTest {
+
+    private static final byte[] NO_TAGS = new byte[0];
+
+    private final SeriesMap<AtomicLong> series = new SeriesMap<AtomicLong>() {
+        @Override AtomicLong create() {
+            return new AtomicLong();
+        }
+    };
+    private final List<String> written = new ArrayList<String>();
+    private final SeriesMap.Writer<AtomicLong> writer = new SeriesMap.Writer<AtomicLong>() {
+        @Override public boolean write(String aspect, AtomicLong value, byte[] tags, MessageEncoder encoder, MessageRingBuffer.Handler out) {
+            final long sum = value.getAndSet(0L);
+            if (sum == 0L) {
+                return false;
+            }
+            written.add(aspect + ":" + sum + new String(tags));
+            return true;
+        }
+    };
+
+    @Test public void
+    forgets_series_which_were_idle_for_an_interval() {
+        final TagSet tags = TagSet.encode(new String[0], new String[] { "env:test" });
+        series.get("idle", null).incrementAndGet();
+        series.get("busy", null).incrementAndGet();
+        series.get("tagged", tags).incrementAndGet();
+        flush();
+        assertThat(series.size(), is(3));
+
+        series.get("busy", null).incrementAndGet();
+        assertThat(flush(), contains("busy:1"));
+        assertThat(series.size(), is(1));
+
+        assertThat(flush().isEmpty(), is(true));
+        assertThat(series.size(), is(0));
+    }
+
+    @Test public void
+    writes_what_was_recorded_into_a_series_as_it_was_forgotten_at_the_next_flush() {
+        final TagSet tags = TagSet.encode(new String[0], new String[] { "env:test" });
+        final AtomicLong untagged = series.get("late", null);
+        final AtomicLong tagged = series.get("late", tags);
+        flush();
+
+        untagged.addAndGet(2L);
+        tagged.addAndGet(3L);
+        assertThat(flush(), contains("late:2", "late:3|#env:test"));
+
+        untagged.addAndGet(5L);
+        assertThat(flush().isEmpty(), is(true));
+    }
+
+    @Test public void
+    creates_a_series_afresh_once_it_has_been_forgotten() {
+        final AtomicLong forgotten = series.get("aspect", null);
+        flush();
+
+        final AtomicLong recreated = series.get("aspect", null);
+        recreated.incrementAndGet();
+        assertThat(recreated == forgotten, is(false));
+        assertThat(flush(), contains("aspect:1"));
+        assertThat(series.size(), is(1));
+    }
+
+    private List<String> flush() {
+        written.clear();
+        series.flush(NO_TAGS, writer, null, null);
+        return new ArrayList<String>(written);
+    }
+}
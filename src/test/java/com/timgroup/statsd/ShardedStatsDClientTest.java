@@ -0,0 +1,173 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+public final class ShardedStatsDClientTest {
+
+    private static final int FIRST_STATSD_SERVER_PORT = 17257;
+    private static final int SECOND_STATSD_SERVER_PORT = 17258;
+
+    private final DummyStatsDServer firstServer = new DummyStatsDServer(FIRST_STATSD_SERVER_PORT);
+    private final DummyStatsDServer secondServer = new DummyStatsDServer(SECOND_STATSD_SERVER_PORT);
+    private final ShardedStatsDClient client = new ShardedStatsDClient(new NonBlockingStatsDClientBuilder()
+            .prefix("my.prefix").maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES).maxLingerMillis(60000L));
+
+    @After
+    public void stop() throws Exception {
+        client.stop();
+        firstServer.stop();
+        secondServer.stop();
+    }
+
+    @Test(timeout=5000L) public void
+    sends_every_metric_of_an_aspect_to_the_same_server() throws Exception {
+        client.addEndpoint("localhost", FIRST_STATSD_SERVER_PORT);
+        client.addEndpoint("localhost", SECOND_STATSD_SERVER_PORT);
+        assertThat(client.getEndpoints(), equalTo(Arrays.asList("localhost:" + FIRST_STATSD_SERVER_PORT,
+                                                                "localhost:" + SECOND_STATSD_SERVER_PORT)));
+
+        for (int i = 0; i < 20; i++) {
+            client.count("mycount" + i, 1L);
+            client.recordGaugeValue("mycount" + i, 2L);
+        }
+        client.stop();
+        firstServer.waitForMessages(1);
+        secondServer.waitForMessages(1);
+
+        final Set<String> firstAspects = aspectsOf(firstServer.messagesReceived());
+        final Set<String> secondAspects = aspectsOf(secondServer.messagesReceived());
+        assertThat(firstAspects.isEmpty(), is(false));
+        assertThat(secondAspects.isEmpty(), is(false));
+        assertThat(firstAspects.size() + secondAspects.size(), equalTo(20));
+        assertThat(firstServer.messagesReceived().size(), equalTo(2 * firstAspects.size()));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_everything_to_the_remaining_server_once_one_is_removed() throws Exception {
+        client.addEndpoint("localhost", FIRST_STATSD_SERVER_PORT);
+        client.addEndpoint("localhost", SECOND_STATSD_SERVER_PORT);
+        client.removeEndpoint("localhost", FIRST_STATSD_SERVER_PORT);
+
+        for (int i = 0; i < 20; i++) {
+            client.count("mycount" + i, 1L);
+        }
+        client.stop();
+        secondServer.waitForMessages(20);
+
+        assertThat(aspectsOf(secondServer.messagesReceived()).size(), equalTo(20));
+        assertThat(firstServer.messagesReceived().isEmpty(), is(true));
+    }
+
+    @Test(timeout=5000L) public void
+    reports_no_errors_for_metrics_sent_while_a_server_is_being_removed() throws Exception {
+        final List<Exception> errors = new CopyOnWriteArrayList<Exception>();
+        final ShardedStatsDClient shardedClient = new ShardedStatsDClient(new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES)
+                .errorHandler(new StatsDClientErrorHandler() {
+                    @Override public void handle(Exception exception) {
+                        errors.add(exception);
+                    }
+                }));
+        shardedClient.addEndpoint("localhost", FIRST_STATSD_SERVER_PORT);
+        shardedClient.addEndpoint("localhost", SECOND_STATSD_SERVER_PORT);
+        final AtomicBoolean sending = new AtomicBoolean(true);
+        final List<Thread> senders = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final Thread sender = new Thread(new Runnable() {
+                @Override public void run() {
+                    int i = 0;
+                    while (sending.get()) {
+                        shardedClient.count("mycount" + (i++ % 20), 1L);
+                    }
+                }
+            });
+            senders.add(sender);
+            sender.start();
+        }
+        try {
+            Thread.sleep(50L);
+            shardedClient.removeEndpoint("localhost", FIRST_STATSD_SERVER_PORT);
+            Thread.sleep(50L);
+        } finally {
+            sending.set(false);
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            shardedClient.stop();
+        }
+        assertThat(errors.toString(), errors.isEmpty(), is(true));
+    }
+
+    private static Set<String> aspectsOf(List<String> messages) {
+        final Set<String> aspects = new HashSet<String>();
+        for (String message : messages) {
+            aspects.add(message.substring(0, message.indexOf(':')));
+        }
+        return aspects;
+    }
+
+    private static final class DummyStatsDServer {
+        private final List<String> messagesReceived = new ArrayList<String>();
+        private final DatagramSocket server;
+        private final Thread receiver;
+
+        public DummyStatsDServer(int port) {
+            try {
+                server = new DatagramSocket(port);
+            } catch (SocketException e) {
+                throw new IllegalStateException(e);
+            }
+            receiver = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        while (true) {
+                            final DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+                            server.receive(packet);
+                            final String payload = new String(packet.getData(), 0, packet.getLength(), Charset.forName("UTF-8"));
+                            synchronized (messagesReceived) {
+                                messagesReceived.addAll(Arrays.asList(payload.split("\n")));
+                            }
+                        }
+                    } catch (Exception e) { }
+                }
+            });
+            receiver.start();
+        }
+
+        public void stop() throws InterruptedException {
+            server.close();
+            receiver.join();
+        }
+
+        public void waitForMessages(int count) {
+            while (messagesReceived().size() < count) {
+                try {
+                    Thread.sleep(10L);
+                } catch (InterruptedException e) {}
+            }
+        }
+
+        public List<String> messagesReceived() {
+            synchronized (messagesReceived) {
+                return new ArrayList<String>(messagesReceived);
+            }
+        }
+    }
+}
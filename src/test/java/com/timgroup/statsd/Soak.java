@@ -0,0 +1,327 @@
+package com.timgroup.statsd;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes messages through a {@link NonBlockingStatsDClient} from a number of threads, at a
+ * given total rate or as fast as they can, into a {@link StatsDSink}, and reports how many
+ * arrived, how late, and what the client cost in CPU time and allocation along the way.
+ *
+ * <p>Each thread cycles through counters, timers in nanoseconds, gauges and set events over
+ * a few aspects, and sends a lag probe every millisecond. CPU time and allocation are
+ * measured on the calling threads and on the sender's thread, which the soak starts itself.</p>
+ *
+ * <p>Run it with {@code ant soak}, passing {@code name=value} settings in {@code soak.args};
+ * see {@link #main(String[])}.</p>
+ */
+final class Soak {
+
+    private static final String PREFIX = "soak";
+    private static final String LAG_PROBE_ASPECT = "lag";
+    private static final int MESSAGES_PER_CHECK = 64;
+    private static final long PROBE_INTERVAL_NANOS = 1000000L;
+    private static final int SET_MEMBERS = 64;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final NonBlockingStatsDClientBuilder client;
+    private int threads = 1;
+    private long ratePerSecond;
+    private long durationMillis = 10000L;
+    private int aspects = 16;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong producerCpuNanos = new AtomicLong();
+    private final AtomicLong producerAllocatedBytes = new AtomicLong();
+    private final AtomicLong senderCpuNanos = new AtomicLong();
+    private final AtomicLong senderAllocatedBytes = new AtomicLong();
+    private final List<Thread> senderThreads = new ArrayList<Thread>();
+
+    /**
+     * @param client
+     *     the settings of the client under test; its prefix, address and sender execution
+     *     are replaced by the soak's own
+     */
+    Soak(NonBlockingStatsDClientBuilder client) {
+        this.client = client.copy();
+    }
+
+    Soak threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param ratePerSecond
+     *     the messages to send per second across all threads, or zero to send as fast as they can
+     */
+    Soak ratePerSecond(long ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+        return this;
+    }
+
+    Soak durationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+        return this;
+    }
+
+    Soak aspects(int aspects) {
+        this.aspects = aspects;
+        return this;
+    }
+
+    Report run() throws Exception {
+        final long originNanos = System.nanoTime();
+        final StatsDSink sink = new StatsDSink(originNanos);
+        final NonBlockingStatsDClient statsd;
+        try {
+            statsd = client.prefix(PREFIX).hostname("127.0.0.1").port(sink.port())
+                    .execution(SenderExecution.executor(new MeasuredExecutor()))
+                    .build();
+        } catch (RuntimeException e) {
+            sink.close();
+            throw e;
+        }
+        final long startNanos = System.nanoTime();
+        final long endNanos = startNanos + durationMillis * 1000000L;
+        final Thread[] drivers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            drivers[i] = new Thread(new Runnable() {
+                @Override public void run() {
+                    final long cpu = cpuNanos();
+                    final long allocated = allocatedBytes();
+                    drive(statsd, originNanos, endNanos);
+                    producerCpuNanos.addAndGet(cpuNanos() - cpu);
+                    producerAllocatedBytes.addAndGet(allocatedBytes() - allocated);
+                }
+            }, "soak-" + i);
+            drivers[i].start();
+        }
+        for (Thread driver : drivers) {
+            driver.join();
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        statsd.stop();
+        synchronized (senderThreads) {
+            for (Thread sender : senderThreads) {
+                sender.join();
+            }
+        }
+        sink.awaitQuiet(250L, 5000L);
+        sink.close();
+
+        final Report report = new Report(threads, elapsedNanos, sent.get(), sink, statsd.getTelemetry());
+        report.producerCpuNanos = producerCpuNanos.get();
+        report.producerAllocatedBytes = producerAllocatedBytes.get();
+        report.senderCpuNanos = senderCpuNanos.get();
+        report.senderAllocatedBytes = senderAllocatedBytes.get();
+        return report;
+    }
+
+    private void drive(NonBlockingStatsDClient statsd, long originNanos, long endNanos) {
+        final String[] counters = new String[aspects];
+        final String[] timers = new String[aspects];
+        final String[] gauges = new String[aspects];
+        final String[] sets = new String[aspects];
+        for (int i = 0; i < aspects; i++) {
+            counters[i] = "count." + i;
+            timers[i] = "time." + i;
+            gauges[i] = "gauge." + i;
+            sets[i] = "set." + i;
+        }
+        final String[] members = new String[SET_MEMBERS];
+        for (int i = 0; i < SET_MEMBERS; i++) {
+            members[i] = "member-" + i;
+        }
+        final double intervalNanos = (ratePerSecond <= 0L) ? 0.0d : 1e9d * threads / ratePerSecond;
+        final long startNanos = System.nanoTime();
+        long nextProbeNanos = startNanos;
+        long messages = 0L;
+        int aspect = 0;
+        while (true) {
+            for (int i = 0; i < MESSAGES_PER_CHECK; i++) {
+                switch ((int) (messages & 3L)) {
+                    case 0: statsd.count(counters[aspect], 1L); break;
+                    case 1: statsd.recordExecutionTimeNanos(timers[aspect], messages & 0xfffffL); break;
+                    case 2: statsd.recordGaugeValue(gauges[aspect], messages & 0x3ffL); break;
+                    default: statsd.recordSetEvent(sets[aspect], members[(int) (messages % SET_MEMBERS)]);
+                             aspect = (aspect + 1 == aspects) ? 0 : aspect + 1;
+                }
+                messages++;
+            }
+            final long now = System.nanoTime();
+            if (now >= endNanos) {
+                break;
+            }
+            if (now >= nextProbeNanos) {
+                statsd.recordGaugeValue(LAG_PROBE_ASPECT, System.nanoTime() - originNanos);
+                messages++;
+                nextProbeNanos = now + PROBE_INTERVAL_NANOS;
+            }
+            if (intervalNanos > 0.0d) {
+                final long dueNanos = startNanos + (long) (messages * intervalNanos);
+                if (dueNanos > now) {
+                    LockSupport.parkNanos(dueNanos - now);
+                }
+            }
+        }
+        sent.addAndGet(messages);
+    }
+
+    private static long cpuNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0L;
+    }
+
+    private static long allocatedBytes() {
+        return (THREADS instanceof com.sun.management.ThreadMXBean)
+                ? ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId())
+                : 0L;
+    }
+
+    /**
+     * Runs the sender on a thread of the soak's own, so that its CPU time and allocation can be measured.
+     */
+    private final class MeasuredExecutor implements Executor {
+        @Override
+        public void execute(final Runnable command) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override public void run() {
+                    final long cpu = cpuNanos();
+                    final long allocated = allocatedBytes();
+                    try {
+                        command.run();
+                    } finally {
+                        senderCpuNanos.addAndGet(cpuNanos() - cpu);
+                        senderAllocatedBytes.addAndGet(allocatedBytes() - allocated);
+                    }
+                }
+            }, "StatsD-soak-sender");
+            thread.setDaemon(true);
+            synchronized (senderThreads) {
+                senderThreads.add(thread);
+            }
+            thread.start();
+        }
+    }
+
+    /**
+     * What a soak sent, what arrived, and what sending it cost.
+     *
+     * <p>Messages neither dropped by the client nor delivered were shed by sampling or lost in
+     * transit. With client-side aggregation, fewer messages are delivered than sent, and the
+     * difference says nothing about loss.</p>
+     */
+    static final class Report {
+        final int threads;
+        final long elapsedNanos;
+        final long sent;
+        final long delivered;
+        final long packets;
+        final long malformed;
+        final long droppedByClient;
+        final TimerHistogram.Snapshot lagMicros = new TimerHistogram.Snapshot();
+        long producerCpuNanos;
+        long producerAllocatedBytes;
+        long senderCpuNanos;
+        long senderAllocatedBytes;
+
+        Report(int threads, long elapsedNanos, long sent, StatsDSink sink, SenderTelemetry telemetry) {
+            this.threads = threads;
+            this.elapsedNanos = elapsedNanos;
+            this.sent = sent;
+            this.delivered = sink.messages();
+            this.packets = sink.packets();
+            this.malformed = sink.malformed();
+            this.droppedByClient = telemetry.getDroppedMessageCount();
+            sink.drainLagTo(lagMicros);
+        }
+
+        double lossPercent() {
+            return (sent == 0L) ? 0.0d : 100.0d * (sent - delivered) / sent;
+        }
+
+        @Override
+        public String toString() {
+            final double seconds = elapsedNanos / 1e9d;
+            final StringBuilder text = new StringBuilder();
+            text.append(String.format(Locale.US, "sent      %d messages in %.1fs on %d threads (%.0f/s)%n",
+                                      sent, seconds, threads, sent / seconds));
+            text.append(String.format(Locale.US, "delivered %d messages in %d packets, %d malformed (%.3f%% lost: %d dropped by the client, %d shed or lost in transit)%n",
+                                      delivered, packets, malformed, lossPercent(), droppedByClient, sent - delivered - droppedByClient));
+            if (lagMicros.isEmpty()) {
+                text.append(String.format("lag       no probes arrived%n"));
+            } else {
+                text.append(String.format(Locale.US, "lag       p50 %dus, p99 %dus, p999 %dus, max %dus%n",
+                                          lagMicros.valueAtQuantile(0.5d), lagMicros.valueAtQuantile(0.99d),
+                                          lagMicros.valueAtQuantile(0.999d), lagMicros.max));
+            }
+            text.append(String.format(Locale.US, "producers %.0fms cpu (%.0fns/message), %.1f bytes/message allocated%n",
+                                      producerCpuNanos / 1e6d, (double) producerCpuNanos / Math.max(1L, sent),
+                                      (double) producerAllocatedBytes / Math.max(1L, sent)));
+            text.append(String.format(Locale.US, "sender    %.0fms cpu (%.0fns/message), %.1f bytes/message allocated",
+                                      senderCpuNanos / 1e6d, (double) senderCpuNanos / Math.max(1L, sent),
+                                      (double) senderAllocatedBytes / Math.max(1L, sent)));
+            return text.toString();
+        }
+    }
+
+    /**
+     * Runs a soak and prints its report. Settings are given as {@code name=value}: {@code threads},
+     * {@code rate} (messages per second, zero for as fast as possible), {@code seconds} and
+     * {@code aspects} for the load, and {@code maxPacketSizeBytes}, {@code maxLingerMillis},
+     * {@code queueCapacity}, {@code producerBuffers}, {@code overflowPolicy}, {@code maxBlockMillis},
+     * {@code loadShedding}, {@code aggregateCounters} and {@code coalesceGauges} for the client.
+     */
+    public static void main(String[] args) throws Exception {
+        final NonBlockingStatsDClientBuilder client = new NonBlockingStatsDClientBuilder();
+        int threads = 4;
+        long rate = 0L;
+        long seconds = 10L;
+        int aspects = 16;
+        for (String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("expected name=value: " + arg);
+            }
+            final String name = arg.substring(0, equals);
+            final String value = arg.substring(equals + 1);
+            if ("threads".equals(name)) {
+                threads = Integer.parseInt(value);
+            } else if ("rate".equals(name)) {
+                rate = Long.parseLong(value);
+            } else if ("seconds".equals(name)) {
+                seconds = Long.parseLong(value);
+            } else if ("aspects".equals(name)) {
+                aspects = Integer.parseInt(value);
+            } else if ("maxPacketSizeBytes".equals(name)) {
+                client.maxPacketSizeBytes(Integer.parseInt(value));
+            } else if ("maxLingerMillis".equals(name)) {
+                client.maxLingerMillis(Long.parseLong(value));
+            } else if ("queueCapacity".equals(name)) {
+                client.queueCapacity(Integer.parseInt(value));
+            } else if ("producerBuffers".equals(name)) {
+                client.producerBuffers(Boolean.parseBoolean(value));
+            } else if ("overflowPolicy".equals(name)) {
+                client.overflowPolicy(QueueOverflowPolicy.valueOf(value));
+            } else if ("maxBlockMillis".equals(name)) {
+                client.maxBlockMillis(Long.parseLong(value));
+            } else if ("loadShedding".equals(name)) {
+                client.loadShedding(Double.parseDouble(value));
+            } else if ("aggregateCounters".equals(name)) {
+                client.aggregateCounters(Boolean.parseBoolean(value));
+            } else if ("coalesceGauges".equals(name)) {
+                client.coalesceGauges(Boolean.parseBoolean(value));
+            } else {
+                throw new IllegalArgumentException("unknown setting: " + name);
+            }
+        }
+        System.out.println(new Soak(client).threads(threads).ratePerSecond(rate).durationMillis(seconds * 1000L)
+                                            .aspects(aspects).run());
+    }
+}
@@ -0,0 +1,57 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public final class SoakTest {
+
+    @Test(timeout=5000L) public void
+    sink_aggregates_the_messages_it_receives() throws Exception {
+        final StatsDSink sink = new StatsDSink(System.nanoTime());
+        final DatagramSocket socket = new DatagramSocket();
+        try {
+            final byte[] data = ("a:1|c\na:2|c|@0.5\ng:5|g\ng:+2|g|#env:test\nt:1.5|ms|@0.25\n"
+                    + "s:x|s\ns:y|s\ns:x|s\nnonsense").getBytes(Charset.forName("UTF-8"));
+            socket.send(new DatagramPacket(data, data.length, InetAddress.getByName("127.0.0.1"), sink.port()));
+            while (sink.packets() == 0L) {
+                Thread.sleep(10L);
+            }
+        } finally {
+            socket.close();
+            sink.close();
+        }
+
+        assertThat(sink.messages(), is(8L));
+        assertThat(sink.malformed(), is(1L));
+        assertThat(sink.counter("a"), is(5.0d));
+        assertThat(sink.gauge("g"), is(7.0d));
+        assertThat(sink.gauge("h"), is(nullValue()));
+        assertThat(sink.timerCount("t"), is(4.0d));
+        assertThat(sink.setSize("s"), is(2));
+    }
+
+    @Test(timeout=5000L) public void
+    delivers_everything_sent_at_a_modest_rate() throws Exception {
+        final Soak.Report report = new Soak(new NonBlockingStatsDClientBuilder()
+                        .maxPacketSizeBytes(NonBlockingSender.ETHERNET_MAX_PACKET_SIZE_BYTES)
+                        .overflowPolicy(QueueOverflowPolicy.BLOCK).maxBlockMillis(1000L))
+                .threads(2).ratePerSecond(10000L).durationMillis(500L)
+                .run();
+
+        assertThat(report.sent, greaterThan(0L));
+        assertThat(report.droppedByClient, is(0L));
+        assertThat(report.malformed, is(0L));
+        assertThat(report.delivered, equalTo(report.sent));
+        assertThat(report.lagMicros.isEmpty(), is(false));
+    }
+}
@@ -0,0 +1,111 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class SpillJournalTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File file;
+
+    @Before
+    public void create() throws Exception {
+        file = File.createTempFile("statsd-spill", ".journal");
+    }
+
+    @After
+    public void delete() {
+        file.delete();
+    }
+
+    @Test public void
+    returns_batches_in_the_order_they_were_appended_across_wraparound() throws Exception {
+        final SpillJournal journal = new SpillJournal(file, 20);
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertThat(append(journal, "batch" + i), is(0));
+                assertThat(peek(journal), equalTo("batch" + i));
+                journal.remove();
+            }
+            assertThat(peek(journal), is(nullValue()));
+            assertThat(journal.isEmpty(), is(true));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test public void
+    discards_the_oldest_batches_to_make_room() throws Exception {
+        final SpillJournal journal = new SpillJournal(file, 24);
+        try {
+            assertThat(append(journal, "one"), is(0));
+            assertThat(append(journal, "two"), is(0));
+            assertThat(append(journal, "three"), is(0));
+            assertThat(append(journal, "seventeen"), is(2));
+            assertThat(peek(journal), equalTo("three"));
+            journal.remove();
+            assertThat(peek(journal), equalTo("seventeen"));
+            assertThat(journal.fits(20), is(true));
+            assertThat(journal.fits(21), is(false));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test public void
+    keeps_batches_for_the_next_journal_to_open_the_file() throws Exception {
+        final SpillJournal first = new SpillJournal(file, 64);
+        append(first, "one");
+        append(first, "two");
+        first.remove();
+        first.close();
+
+        final SpillJournal second = new SpillJournal(file, 64);
+        try {
+            assertThat(peek(second), equalTo("two"));
+            second.remove();
+            assertThat(second.isEmpty(), is(true));
+        } finally {
+            second.close();
+        }
+    }
+
+    @Test public void
+    starts_afresh_when_reopened_with_another_size() throws Exception {
+        final SpillJournal first = new SpillJournal(file, 64);
+        append(first, "one");
+        first.close();
+
+        final SpillJournal second = new SpillJournal(file, 128);
+        try {
+            assertThat(second.isEmpty(), is(true));
+        } finally {
+            second.close();
+        }
+    }
+
+    private static int append(SpillJournal journal, String batch) {
+        return journal.append(ByteBuffer.wrap(batch.getBytes(UTF_8)));
+    }
+
+    private static String peek(SpillJournal journal) {
+        final ByteBuffer batch = journal.peek();
+        if (batch == null) {
+            return null;
+        }
+        final byte[] bytes = new byte[batch.remaining()];
+        batch.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,206 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A StatsD server stand-in for soak tests, which receives datagrams on the loopback interface,
+ * parses every message in them, and aggregates them per metric much as a StatsD server would:
+ * counters and timer counts scaled up by their sample rates, gauges set or adjusted, and set
+ * members collected. Tags are ignored.
+ *
+ * <p>Gauges named {@link #LAG_PROBE_KEY} carry the time at which they were recorded, in
+ * nanoseconds since the origin given to the sink, and are also timed from recording to
+ * arrival, giving the end-to-end lag through the client.</p>
+ */
+final class StatsDSink {
+
+    static final String LAG_PROBE_KEY = "soak.lag";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int RECEIVE_BUFFER_BYTES = 8 * 1024 * 1024;
+
+    private final long originNanos;
+    private final DatagramSocket socket;
+    private final Thread receiver;
+    private final TimerHistogram lagMicros = new TimerHistogram();
+    private final Map<String, Double> counters = new HashMap<String, Double>();
+    private final Map<String, Double> gauges = new HashMap<String, Double>();
+    private final Map<String, Double> timers = new HashMap<String, Double>();
+    private final Map<String, Set<String>> sets = new HashMap<String, Set<String>>();
+    private long packets;
+    private long messages;
+    private long malformed;
+
+    /**
+     * @param originNanos
+     *     the {@link System#nanoTime()} from which lag probes are measured
+     */
+    StatsDSink(long originNanos) throws IOException {
+        this.originNanos = originNanos;
+        this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        socket.setReceiveBufferSize(RECEIVE_BUFFER_BYTES);
+        this.receiver = new Thread(new Runnable() {
+            @Override public void run() {
+                receive();
+            }
+        }, "StatsDSink");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    int port() {
+        return socket.getLocalPort();
+    }
+
+    synchronized long packets() {
+        return packets;
+    }
+
+    synchronized long messages() {
+        return messages;
+    }
+
+    synchronized long malformed() {
+        return malformed;
+    }
+
+    synchronized double counter(String key) {
+        final Double value = counters.get(key);
+        return (value == null) ? 0.0d : value;
+    }
+
+    synchronized Double gauge(String key) {
+        return gauges.get(key);
+    }
+
+    synchronized double timerCount(String key) {
+        final Double value = timers.get(key);
+        return (value == null) ? 0.0d : value;
+    }
+
+    synchronized int setSize(String key) {
+        final Set<String> members = sets.get(key);
+        return (members == null) ? 0 : members.size();
+    }
+
+    /**
+     * Moves the lags measured so far, in microseconds, into the given snapshot.
+     */
+    void drainLagTo(TimerHistogram.Snapshot snapshot) {
+        lagMicros.drainTo(snapshot);
+    }
+
+    /**
+     * Waits until no message has arrived for the given time, or until the given deadline.
+     */
+    void awaitQuiet(long quietMillis, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        long seen = messages();
+        long quietSince = System.currentTimeMillis();
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+            final long now = messages();
+            if (now != seen) {
+                seen = now;
+                quietSince = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - quietSince >= quietMillis) {
+                return;
+            }
+        }
+    }
+
+    void close() throws InterruptedException {
+        socket.close();
+        receiver.join();
+    }
+
+    private void receive() {
+        final DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+        while (true) {
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                return; // closed
+            }
+            final long arrivedNanos = System.nanoTime();
+            final String text = new String(packet.getData(), packet.getOffset(), packet.getLength(), UTF_8);
+            synchronized (this) {
+                packets++;
+                for (String line : text.split("\n")) {
+                    if (parse(line, arrivedNanos)) {
+                        messages++;
+                    } else {
+                        malformed++;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean parse(String line, long arrivedNanos) {
+        final int colon = line.indexOf(':');
+        final int bar = line.indexOf('|', colon + 1);
+        if (colon <= 0 || bar < 0) {
+            return false;
+        }
+        final String key = line.substring(0, colon);
+        final String value = line.substring(colon + 1, bar);
+        final int typeEnd = line.indexOf('|', bar + 1);
+        final String type = (typeEnd < 0) ? line.substring(bar + 1) : line.substring(bar + 1, typeEnd);
+        double sampleRate = 1.0d;
+        if (typeEnd >= 0 && line.startsWith("@", typeEnd + 1)) {
+            final int rateEnd = line.indexOf('|', typeEnd + 1);
+            try {
+                sampleRate = Double.parseDouble((rateEnd < 0) ? line.substring(typeEnd + 2) : line.substring(typeEnd + 2, rateEnd));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        if ("s".equals(type)) {
+            Set<String> members = sets.get(key);
+            if (members == null) {
+                members = new HashSet<String>();
+                sets.put(key, members);
+            }
+            members.add(value);
+            return true;
+        }
+        final double number;
+        try {
+            number = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if ("c".equals(type)) {
+            add(counters, key, number / sampleRate);
+        } else if ("ms".equals(type)) {
+            add(timers, key, 1.0d / sampleRate);
+        } else if ("g".equals(type)) {
+            if (value.startsWith("+") || value.startsWith("-")) {
+                add(gauges, key, number);
+            } else {
+                gauges.put(key, number);
+            }
+            if (LAG_PROBE_KEY.equals(key)) {
+                lagMicros.record((arrivedNanos - originNanos - (long) number) / 1000L, 1.0d);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static void add(Map<String, Double> totals, String key, double amount) {
+        final Double total = totals.get(key);
+        totals.put(key, (total == null) ? amount : total + amount);
+    }
+}
@@ -0,0 +1,134 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public final class TcpTransportTest {
+
+    private static final int STATSD_SERVER_PORT = 17255;
+
+    private TcpStatsDServer server;
+
+    @After
+    public void stop() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_newline_terminated_messages_over_a_single_connection() throws Exception {
+        server = new TcpStatsDServer(STATSD_SERVER_PORT);
+        final NonBlockingStatsDClient client = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").transport(new TcpTransport("localhost", STATSD_SERVER_PORT))
+                .maxPacketSizeBytes(8192)
+                .build();
+        try {
+            client.count("mycount", 1L);
+            client.recordGaugeValue("mygauge", 2L);
+            client.recordExecutionTime("mytime", 3L);
+            server.waitForMessages(3);
+        } finally {
+            client.stop();
+        }
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:1|c", "my.prefix.mygauge:2|g", "my.prefix.mytime:3|ms"));
+        assertThat(server.connectionsAccepted(), equalTo(1));
+    }
+
+    @Test(timeout=5000L) public void
+    keeps_messages_until_the_server_starts_listening() throws Exception {
+        final NonBlockingStatsDClient client = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").transport(new TcpTransport("localhost", STATSD_SERVER_PORT))
+                .build();
+        try {
+            client.count("mycount", 1L);
+            Thread.sleep(100L);
+            server = new TcpStatsDServer(STATSD_SERVER_PORT);
+            client.count("mycount", 2L);
+        } finally {
+            client.stop();
+        }
+        server.waitForMessages(2);
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:1|c", "my.prefix.mycount:2|c"));
+    }
+
+    private static final class TcpStatsDServer {
+        private final List<String> messagesReceived = new ArrayList<String>();
+        private final AtomicInteger connectionsAccepted = new AtomicInteger();
+        private final ServerSocket server;
+        private final Thread acceptor;
+
+        public TcpStatsDServer(int port) throws IOException {
+            server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress("localhost", port));
+            acceptor = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        while (true) {
+                            final Socket connection = server.accept();
+                            connectionsAccepted.incrementAndGet();
+                            readLines(connection);
+                        }
+                    } catch (IOException e) { }
+                }
+            });
+            acceptor.start();
+        }
+
+        private void readLines(final Socket connection) {
+            new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), Charset.forName("UTF-8")));
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            synchronized (messagesReceived) {
+                                messagesReceived.add(line);
+                            }
+                        }
+                        connection.close();
+                    } catch (IOException e) { }
+                }
+            }).start();
+        }
+
+        public void stop() throws Exception {
+            server.close();
+            acceptor.join();
+        }
+
+        public void waitForMessages(int count) {
+            while (messagesReceived().size() < count) {
+                try {
+                    Thread.sleep(10L);
+                } catch (InterruptedException e) {}
+            }
+        }
+
+        public List<String> messagesReceived() {
+            synchronized (messagesReceived) {
+                return new ArrayList<String>(messagesReceived);
+            }
+        }
+
+        public int connectionsAccepted() {
+            return connectionsAccepted.get();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import org.junit.Test;
+
+public final class TimerHistogramTest {
+
+    private final TimerHistogram histogram = new TimerHistogram();
+    private final TimerHistogram.Snapshot snapshot = new TimerHistogram.Snapshot();
+
+    @Test public void
+    keeps_every_bucket_midpoint_within_three_percent_of_the_values_it_holds() {
+        for (long value = 0L; value < 1000000L; value += 7L) {
+            final long midpoint = TimerHistogram.bucketMidpoint(TimerHistogram.bucketIndex(value));
+            assertThat(Math.abs(midpoint - value) * 100L, lessThanOrEqualTo(value * 3L));
+        }
+        assertThat(TimerHistogram.bucketIndex(Long.MAX_VALUE), equalTo(TimerHistogram.BUCKETS - 1));
+    }
+
+    @Test public void
+    estimates_quantiles_from_the_recorded_distribution() {
+        for (long value = 1L; value <= 1000L; value++) {
+            histogram.record(value, 1.0d);
+        }
+        histogram.drainTo(snapshot);
+
+        assertThat(snapshot.count(), equalTo(1000.0d));
+        assertThat(snapshot.min, equalTo(1L));
+        assertThat(snapshot.max, equalTo(1000L));
+        assertThat(snapshot.mean(), equalTo(500.5d));
+        assertThat(Math.abs(snapshot.valueAtQuantile(0.5d) - 500L), lessThanOrEqualTo(15L));
+        assertThat(Math.abs(snapshot.valueAtQuantile(0.99d) - 990L), lessThanOrEqualTo(30L));
+    }
+
+    @Test public void
+    weights_sampled_times_by_the_inverse_of_their_sample_rate() {
+        histogram.record(10L, 0.25d);
+        histogram.record(20L, 1.0d);
+        histogram.drainTo(snapshot);
+
+        assertThat(snapshot.count(), equalTo(5.0d));
+        assertThat(snapshot.mean(), equalTo(12.0d));
+    }
+
+    @Test public void
+    starts_a_new_interval_once_drained() {
+        histogram.record(10L, 1.0d);
+        histogram.drainTo(snapshot);
+        histogram.drainTo(snapshot);
+
+        assertThat(snapshot.isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,145 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public final class UdpTransportTest {
+
+    private static final int STATSD_SERVER_PORT = 17259;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private DatagramSocket first;
+    private DatagramSocket second;
+
+    @After
+    public void stop() throws Exception {
+        if (first != null) {
+            first.close();
+        }
+        if (second != null) {
+            second.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    follows_the_server_to_its_new_address_once_the_host_name_is_resolved_again() throws Exception {
+        final InetAddress firstAddress = InetAddress.getByName("127.0.0.1");
+        final InetAddress secondAddress = InetAddress.getByName("127.0.0.2");
+        first = new DatagramSocket(new InetSocketAddress(firstAddress, STATSD_SERVER_PORT));
+        second = new DatagramSocket(new InetSocketAddress(secondAddress, STATSD_SERVER_PORT));
+
+        final AtomicReference<InetAddress> serverAddress = new AtomicReference<InetAddress>(firstAddress);
+        final UdpTransport transport = new UdpTransport("statsd", STATSD_SERVER_PORT, 10L, new UdpTransport.AddressResolver() {
+            @Override public InetAddress resolve(String hostname) throws UnknownHostException {
+                return serverAddress.get();
+            }
+        }, NonBlockingStatsDClient.NO_OP_HANDLER);
+        transport.open();
+        try {
+            transport.write(ByteBuffer.wrap("before:1|c".getBytes(UTF_8)));
+            assertThat(receive(first), equalTo("before:1|c"));
+
+            serverAddress.set(secondAddress);
+            Thread.sleep(100L);
+
+            transport.write(ByteBuffer.wrap("after:1|c".getBytes(UTF_8)));
+            assertThat(receive(second), equalTo("after:1|c"));
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    keeps_writing_to_the_last_address_and_reports_failing_to_resolve_the_host_name_again() throws Exception {
+        final InetAddress address = InetAddress.getByName("127.0.0.1");
+        first = new DatagramSocket(new InetSocketAddress(address, STATSD_SERVER_PORT));
+
+        final AtomicReference<InetAddress> serverAddress = new AtomicReference<InetAddress>(address);
+        final AtomicReference<Exception> reported = new AtomicReference<Exception>();
+        final CountDownLatch failed = new CountDownLatch(1);
+        final UdpTransport transport = new UdpTransport("statsd", STATSD_SERVER_PORT, 10L, new UdpTransport.AddressResolver() {
+            @Override public InetAddress resolve(String hostname) throws UnknownHostException {
+                final InetAddress result = serverAddress.get();
+                if (result == null) {
+                    throw new UnknownHostException(hostname);
+                }
+                return result;
+            }
+        }, new StatsDClientErrorHandler() {
+            @Override public void handle(Exception exception) {
+                reported.compareAndSet(null, exception);
+                failed.countDown();
+            }
+        });
+        transport.open();
+        try {
+            serverAddress.set(null);
+            failed.await();
+
+            transport.write(ByteBuffer.wrap("after:1|c".getBytes(UTF_8)));
+            assertThat(receive(first), equalTo("after:1|c"));
+            assertThat(reported.get(), instanceOf(UnknownHostException.class));
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    keeps_resolving_the_host_name_again_after_the_resolver_throws_an_unchecked_exception() throws Exception {
+        final InetAddress firstAddress = InetAddress.getByName("127.0.0.1");
+        final InetAddress secondAddress = InetAddress.getByName("127.0.0.2");
+        first = new DatagramSocket(new InetSocketAddress(firstAddress, STATSD_SERVER_PORT));
+        second = new DatagramSocket(new InetSocketAddress(secondAddress, STATSD_SERVER_PORT));
+
+        final AtomicReference<InetAddress> serverAddress = new AtomicReference<InetAddress>(firstAddress);
+        final AtomicReference<Exception> reported = new AtomicReference<Exception>();
+        final CountDownLatch failed = new CountDownLatch(1);
+        final UdpTransport transport = new UdpTransport("statsd", STATSD_SERVER_PORT, 10L, new UdpTransport.AddressResolver() {
+            @Override public InetAddress resolve(String hostname) {
+                final InetAddress result = serverAddress.get();
+                if (result == null) {
+                    throw new SecurityException("lookup of " + hostname + " not allowed");
+                }
+                return result;
+            }
+        }, new StatsDClientErrorHandler() {
+            @Override public void handle(Exception exception) {
+                reported.compareAndSet(null, exception);
+                failed.countDown();
+            }
+        });
+        transport.open();
+        try {
+            serverAddress.set(null);
+            failed.await();
+            serverAddress.set(secondAddress);
+            Thread.sleep(100L);
+
+            transport.write(ByteBuffer.wrap("after:1|c".getBytes(UTF_8)));
+            assertThat(receive(second), equalTo("after:1|c"));
+            assertThat(reported.get(), instanceOf(SecurityException.class));
+        } finally {
+            transport.close();
+        }
+    }
+
+    private static String receive(DatagramSocket socket) throws Exception {
+        final DatagramPacket packet = new DatagramPacket(new byte[256], 256);
+        socket.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), UTF_8);
+    }
+}
@@ -0,0 +1,121 @@
+package com.timgroup.statsd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class UnixDomainSocketTransportTest {
+
+    private File socketFile;
+    private UnixStatsDServer server;
+
+    @Before
+    public void start() throws Exception {
+        assumeTrue(UnixDomainSocketTransport.isSupported());
+        socketFile = File.createTempFile("statsd", ".sock");
+        socketFile.delete();
+        server = new UnixStatsDServer(socketFile.getPath());
+    }
+
+    @After
+    public void stop() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+        if (socketFile != null) {
+            socketFile.delete();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_newline_terminated_messages_through_the_socket() throws Exception {
+        final NonBlockingStatsDClient client = new NonBlockingStatsDClientBuilder()
+                .prefix("my.prefix").transport(new UnixDomainSocketTransport(socketFile.getPath()))
+                .maxPacketSizeBytes(8192)
+                .build();
+        try {
+            client.count("mycount", 1L);
+            client.recordGaugeValue("mygauge", 2L);
+            client.recordSetEvent("myset", "caf\u00e9");
+            server.waitForMessages(3);
+        } finally {
+            client.stop();
+        }
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:1|c", "my.prefix.mygauge:2|g", "my.prefix.myset:caf\u00e9|s"));
+    }
+
+    /**
+     * Listens on a Unix domain socket, through reflection since the tests are built for Java 6.
+     */
+    private static final class UnixStatsDServer {
+        private final List<String> messagesReceived = new ArrayList<String>();
+        private final ServerSocketChannel server;
+
+        public UnixStatsDServer(String path) throws Exception {
+            final Class<?> protocolFamily = Class.forName("java.net.ProtocolFamily");
+            final Object unix = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+            final Object address = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+            server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", protocolFamily).invoke(null, unix);
+            ServerSocketChannel.class.getMethod("bind", SocketAddress.class).invoke(server, address);
+            new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        readLines(server.accept());
+                    } catch (IOException e) { }
+                }
+            }).start();
+        }
+
+        private void readLines(SocketChannel connection) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(65536);
+            while (connection.read(buffer) >= 0) {
+                buffer.flip();
+                int lineStart = 0;
+                for (int i = 0; i < buffer.limit(); i++) {
+                    if (buffer.get(i) == '\n') {
+                        final String line = new String(buffer.array(), lineStart, i - lineStart, Charset.forName("UTF-8"));
+                        synchronized (messagesReceived) {
+                            messagesReceived.add(line);
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+                buffer.position(lineStart);
+                buffer.compact();
+            }
+            connection.close();
+        }
+
+        public void stop() throws IOException {
+            server.close();
+        }
+
+        public void waitForMessages(int count) {
+            while (messagesReceived().size() < count) {
+                try {
+                    Thread.sleep(10L);
+                } catch (InterruptedException e) {}
+            }
+        }
+
+        public List<String> messagesReceived() {
+            synchronized (messagesReceived) {
+                return new ArrayList<String>(messagesReceived);
+            }
+        }
+    }
+}